@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures aggregating an already built Grouping with each of the aggregate functions.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+public class AggregateBenchmark
+{
+    @Param( { "Sum", "LongSum", "Avg", "Min", "Max", "Join", "Count", "Collect" } )
+    public String function;
+
+    private Grouping grouping;
+
+    @Setup( Level.Trial )
+    public void groupPaths( EmployeeGraph graph )
+    {
+        grouping = Grouping.description().
+                groupByNode( 1, "department" ).
+                groupFrom( graph.traverse() );
+    }
+
+    @Benchmark
+    public Map<Key, ?> aggregate()
+    {
+        if ( function.equals( "Sum" ) )
+        {
+            return grouping.aggregateNodeProperty( -1, "salary", Aggregate.Sum() );
+        }
+        if ( function.equals( "LongSum" ) )
+        {
+            return grouping.aggregateNodeProperty( -1, "salary", Aggregate.LongSum() );
+        }
+        if ( function.equals( "Avg" ) )
+        {
+            return grouping.aggregateNodeProperty( -1, "salary", Aggregate.Avg() );
+        }
+        if ( function.equals( "Min" ) )
+        {
+            return grouping.aggregateNodeProperty( -1, "salary", Aggregate.Min() );
+        }
+        if ( function.equals( "Max" ) )
+        {
+            return grouping.aggregateNodeProperty( -1, "salary", Aggregate.Max() );
+        }
+        if ( function.equals( "Join" ) )
+        {
+            return grouping.aggregateNodeProperty( -1, "employee", Aggregate.Join( ", " ) );
+        }
+        if ( function.equals( "Count" ) )
+        {
+            return grouping.aggregateNode( -1, Aggregate.Count() );
+        }
+        if ( function.equals( "Collect" ) )
+        {
+            return grouping.aggregateNode( -1, Aggregate.Collect() );
+        }
+        throw new IllegalArgumentException( "Unknown aggregate " + function );
+    }
+}
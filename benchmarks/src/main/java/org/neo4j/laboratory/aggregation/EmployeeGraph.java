@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.traversal.Traverser;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.kernel.Traversal;
+import org.neo4j.kernel.Uniqueness;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A synthetic company graph, shaped like the one in AggregatorTest:
+ * company <- department <- employee -> country. Every employee gives one path, so
+ * the number of employees is the number of paths, and the number of departments
+ * and countries decides the number of groups.
+ *
+ * Bigger graphs than the defaults can be had from the command line, for example
+ * -p employees=10000000.
+ */
+@State( Scope.Benchmark )
+public class EmployeeGraph
+{
+    private static final int NODES_PER_TRANSACTION = 10000;
+    private static final String[] POSITIONS = {"dev", "boss", "sales", "support"};
+
+    @Param( { "10000", "100000", "1000000" } )
+    public int employees;
+
+    @Param( { "10", "1000" } )
+    public int departments;
+
+    @Param( { "20" } )
+    public int countries;
+
+    private File directory;
+    GraphDatabaseService db;
+    private Node company;
+    private List<Path> paths;
+
+    @Setup( Level.Trial )
+    public void createGraph() throws IOException
+    {
+        directory = File.createTempFile( "aggregation-benchmark", "" );
+        directory.delete();
+        db = new EmbeddedGraphDatabase( directory.getAbsolutePath() );
+
+        Random random = new Random( 42 );
+        Transaction transaction = db.beginTx();
+        try
+        {
+            company = db.createNode();
+            Node[] departmentNodes = new Node[departments];
+            for ( int i = 0; i < departments; i++ )
+            {
+                departmentNodes[i] = db.createNode();
+                departmentNodes[i].setProperty( "department", "department " + i );
+                departmentNodes[i].createRelationshipTo( company, RelTypes.DEPARTMENT_OF );
+            }
+            Node[] countryNodes = new Node[countries];
+            for ( int i = 0; i < countries; i++ )
+            {
+                countryNodes[i] = db.createNode();
+                countryNodes[i].setProperty( "country", "country " + i );
+            }
+
+            for ( int i = 0; i < employees; i++ )
+            {
+                Node employee = db.createNode();
+                employee.setProperty( "employee", "employee " + i );
+                employee.setProperty( "salary", 10000L + random.nextInt( 150000 ) );
+                employee.createRelationshipTo( countryNodes[random.nextInt( countries )], RelTypes.LIVES_IN );
+                Relationship worksFor = employee.createRelationshipTo(
+                        departmentNodes[random.nextInt( departments )], RelTypes.WORKS_FOR );
+                worksFor.setProperty( "position", POSITIONS[random.nextInt( POSITIONS.length )] );
+
+                if ( i % NODES_PER_TRANSACTION == NODES_PER_TRANSACTION - 1 )
+                {
+                    transaction.success();
+                    transaction.finish();
+                    transaction = db.beginTx();
+                }
+            }
+            transaction.success();
+        }
+        finally
+        {
+            transaction.finish();
+        }
+    }
+
+    @TearDown( Level.Trial )
+    public void shutdown()
+    {
+        paths = null;
+        db.shutdown();
+        delete( directory );
+    }
+
+    Traverser traverse()
+    {
+        return Traversal.description()
+                .relationships( RelTypes.DEPARTMENT_OF, Direction.INCOMING )
+                .relationships( RelTypes.WORKS_FOR, Direction.INCOMING )
+                .relationships( RelTypes.LIVES_IN, Direction.OUTGOING )
+                .uniqueness( Uniqueness.RELATIONSHIP_GLOBAL )
+                .filter( Traversal.returnWhereLastRelationshipTypeIs( RelTypes.LIVES_IN ) )
+                .traverse( company );
+    }
+
+    /**
+     * @return All the paths of the graph, traversed once and kept in memory, for the
+     *         benchmarks that measure the work done per path rather than the traversal.
+     */
+    List<Path> paths()
+    {
+        if ( paths == null )
+        {
+            paths = new ArrayList<Path>( employees );
+            for ( Path path : traverse() )
+            {
+                paths.add( path );
+            }
+        }
+        return paths;
+    }
+
+    private static void delete( File file )
+    {
+        File[] children = file.listFiles();
+        if ( children != null )
+        {
+            for ( File child : children )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.laboratory.aggregation.aggregates.AggregateFunction;
+import org.neo4j.laboratory.aggregation.aggregates.SumColumn;
+import org.neo4j.laboratory.aggregation.aggregates.SumFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sums a value per group, once through a HashMap of Key to SumFunction the way
+ * groups used to be kept, and once through a KeyGroupTable and a SumColumn.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+public class GroupTableBenchmark
+{
+    @Param( { "100000", "1000000" } )
+    public int paths;
+
+    @Param( { "10", "1000", "100000" } )
+    public int groups;
+
+    private Key[] keys;
+    private Object[] values;
+
+    @Setup
+    public void createPaths()
+    {
+        KeySchema schema = new KeySchema( "department" );
+        Key[] distinctKeys = new Key[groups];
+        for ( int i = 0; i < groups; i++ )
+        {
+            distinctKeys[i] = new Key( schema, new Object[]{"department " + i} );
+        }
+
+        Random random = new Random( 42 );
+        keys = new Key[paths];
+        values = new Object[paths];
+        for ( int i = 0; i < paths; i++ )
+        {
+            keys[i] = distinctKeys[random.nextInt( groups )];
+            values[i] = (double)random.nextInt( 100000 );
+        }
+    }
+
+    @Benchmark
+    public Map<Key, AggregateFunction<Double>> hashMapOfFunctions()
+    {
+        Map<Key, AggregateFunction<Double>> functions = new HashMap<Key, AggregateFunction<Double>>();
+        for ( int i = 0; i < paths; i++ )
+        {
+            AggregateFunction<Double> function = functions.get( keys[i] );
+            if ( function == null )
+            {
+                function = new SumFunction();
+                functions.put( keys[i], function );
+            }
+            function.accumulate( values[i] );
+        }
+        return functions;
+    }
+
+    @Benchmark
+    public SumColumn groupTableAndColumn()
+    {
+        KeyGroupTable table = new KeyGroupTable();
+        SumColumn column = new SumColumn();
+        for ( int i = 0; i < paths; i++ )
+        {
+            int groupCount = table.size();
+            int group = table.getOrAdd( keys[i] );
+            if ( group == groupCount )
+            {
+                column.addGroup( group );
+            }
+            column.accumulate( group, ( (Number)values[i] ).doubleValue() );
+        }
+        return column;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures making grouping keys and building a Grouping from a traversal.
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+public class GroupingBenchmark
+{
+    private static final GroupingDescription BY_DEPARTMENT_AND_COUNTRY = Grouping.description().
+            groupByNode( 1, "department" ).
+            groupByNode( 0, "country" );
+
+    @Benchmark
+    public void getGroupingKey( EmployeeGraph graph, Blackhole blackhole )
+    {
+        PathAccess pathAccess = new PathAccess();
+        for ( Path path : graph.paths() )
+        {
+            blackhole.consume( BY_DEPARTMENT_AND_COUNTRY.getGroupingKey( pathAccess.reset( path ) ) );
+        }
+    }
+
+    @Benchmark
+    public Grouping groupFromTraversal( EmployeeGraph graph )
+    {
+        return BY_DEPARTMENT_AND_COUNTRY.groupFrom( graph.traverse() );
+    }
+}
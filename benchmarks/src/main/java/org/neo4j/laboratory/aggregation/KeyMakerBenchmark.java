@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.Path;
+import org.neo4j.laboratory.aggregation.keymakers.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each KeyMaker on its own, over paths that have already been traversed.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+public class KeyMakerBenchmark
+{
+    @Param( { "Node", "NodeId", "NodeProperty", "RelationProperty", "RelationEndNode", "RelationStartNode" } )
+    public String keyMaker;
+
+    private KeyMaker maker;
+
+    @Setup( Level.Trial )
+    public void createKeyMaker()
+    {
+        if ( keyMaker.equals( "Node" ) )
+        {
+            maker = new NodeKeyMaker( 1 );
+        }
+        else if ( keyMaker.equals( "NodeId" ) )
+        {
+            maker = new NodeIdKeyMaker( 1 );
+        }
+        else if ( keyMaker.equals( "NodeProperty" ) )
+        {
+            maker = new NodePropertyKeyMaker( 1, "department" );
+        }
+        else if ( keyMaker.equals( "RelationProperty" ) )
+        {
+            maker = new RelationPropertyKeyMaker( RelTypes.WORKS_FOR, "position" );
+        }
+        else if ( keyMaker.equals( "RelationEndNode" ) )
+        {
+            maker = new RelationShipEndNodeKeyMaker( RelTypes.WORKS_FOR );
+        }
+        else if ( keyMaker.equals( "RelationStartNode" ) )
+        {
+            maker = new RelationShipStartNodeKeyMaker( RelTypes.DEPARTMENT_OF );
+        }
+        else
+        {
+            throw new IllegalArgumentException( "Unknown key maker " + keyMaker );
+        }
+    }
+
+    @Benchmark
+    public void getKeyValue( EmployeeGraph graph, Blackhole blackhole )
+    {
+        PathAccess pathAccess = new PathAccess();
+        for ( Path path : graph.paths() )
+        {
+            blackhole.consume( maker.getKeyValue( pathAccess.reset( path ) ) );
+        }
+    }
+}
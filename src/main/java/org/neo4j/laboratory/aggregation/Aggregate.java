@@ -28,7 +28,8 @@ import java.util.List;
 public class Aggregate
 {
     /**
-     * Sums the values of a property. The values have to be castable to double.
+     * Sums the values of a property. The values have to be castable to double. The
+     * sum is compensated, so the rounding errors of the additions do not add up.
      * @return
      */
     public static AggregateFunctionFactory<Double> Sum()
@@ -36,16 +37,149 @@ public class Aggregate
         return new SumFactory();
     }
 
+    /**
+     * Sums the values of a property as longs. The values have to be integral numbers,
+     * and the sum is kept exact instead of going through double. Any other value, like
+     * a float or a double, fails with an IllegalArgumentException instead of being
+     * truncated.
+     * @return
+     */
+    public static AggregateFunctionFactory<Long> LongSum()
+    {
+        return new LongSumFactory();
+    }
+
     public static AggregateNodeFunctionFactory<Integer> Count()
     {
         return new CountFactory();
     }
 
+    /**
+     * Counts the distinct values of a property. Equal numbers of different types count
+     * once, and arrays are compared by their contents. All the distinct values of a
+     * group are kept in memory, use ApproxCountDistinct when there are many of them.
+     * @return
+     */
+    public static AggregateFunctionFactory<Long> CountDistinct()
+    {
+        return new CountDistinctFactory();
+    }
+
+    /**
+     * Counts the distinct nodes, by node id.
+     * @return
+     */
+    public static AggregateNodeFunctionFactory<Long> CountDistinctNodes()
+    {
+        return new CountDistinctNodesFactory();
+    }
+
+    /**
+     * Estimates the number of distinct values of a property with a HyperLogLog sketch.
+     * Every group takes 2^precision bytes, whatever the number of values.
+     * @param precision Between 4 and 16. 12 gives 4KB per group and about 1.6% error.
+     *                  Each step up doubles the memory and divides the error by 1.4.
+     * @return
+     */
+    public static AggregateFunctionFactory<Long> ApproxCountDistinct( int precision )
+    {
+        return new ApproxCountDistinctFactory( precision );
+    }
+
+    /**
+     * Estimates the number of distinct nodes with a HyperLogLog sketch. Every group
+     * takes 2^precision bytes, whatever the number of nodes.
+     * @param precision Between 4 and 16, see ApproxCountDistinct.
+     * @return
+     */
+    public static AggregateNodeFunctionFactory<Long> ApproxCountDistinctNodes( int precision )
+    {
+        return new ApproxCountDistinctNodesFactory( precision );
+    }
+
     public static AggregateFunctionFactory<Double> Avg()
     {
         return new AvgFactory();
     }
 
+    /**
+     * Estimates a percentile of the values of a property, with a rank error of about
+     * one percent. Every group keeps a sketch of a few hundred values, however many
+     * values it has. Groups with few values get the exact percentile.
+     * @param fraction The percentile as a fraction, 0.95 for p95.
+     * @return
+     */
+    public static AggregateFunctionFactory<Double> Percentile( double fraction )
+    {
+        return Percentile( fraction, 0.01 );
+    }
+
+    /**
+     * Estimates a percentile of the values of a property.
+     * @param fraction The percentile as a fraction, 0.95 for p95.
+     * @param error    The largest rank error wanted, as a fraction. The size of the
+     *                 sketch kept for every group grows as the error shrinks.
+     * @return
+     */
+    public static AggregateFunctionFactory<Double> Percentile( double fraction, double error )
+    {
+        return new PercentileFactory( fraction, error );
+    }
+
+    /**
+     * Finds the exact percentile of the values of a property. All values of a group
+     * are kept in memory, so only use this for small groups.
+     * @param fraction The percentile as a fraction, 0.95 for p95.
+     * @return
+     */
+    public static AggregateFunctionFactory<Double> ExactPercentile( double fraction )
+    {
+        return new ExactPercentileFactory( fraction );
+    }
+
+    public static AggregateFunctionFactory<Double> Median()
+    {
+        return Percentile( 0.5 );
+    }
+
+    /**
+     * The sample variance of the values of a property, dividing by n - 1. Groups with
+     * less than two values get null.
+     * @return
+     */
+    public static AggregateFunctionFactory<Double> Variance()
+    {
+        return new VarianceFactory( true, false );
+    }
+
+    /**
+     * The population variance of the values of a property, dividing by n.
+     * @return
+     */
+    public static AggregateFunctionFactory<Double> PopulationVariance()
+    {
+        return new VarianceFactory( false, false );
+    }
+
+    /**
+     * The sample standard deviation of the values of a property. Groups with less
+     * than two values get null.
+     * @return
+     */
+    public static AggregateFunctionFactory<Double> StdDev()
+    {
+        return new VarianceFactory( true, true );
+    }
+
+    /**
+     * The population standard deviation of the values of a property.
+     * @return
+     */
+    public static AggregateFunctionFactory<Double> PopulationStdDev()
+    {
+        return new VarianceFactory( false, true );
+    }
+
     public static AggregateFunctionFactory<Double> Max()
     {
         return new MaxFactory();
@@ -0,0 +1,396 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateColumn;
+import org.neo4j.laboratory.aggregation.aggregates.DoubleAggregateColumn;
+import org.neo4j.laboratory.aggregation.aggregates.LongAggregateColumn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Works out, for a set of aggregates, which nodes and properties have to be read
+ * from every path. Each offset is looked up once per path and each property is read
+ * once per path, no matter how many aggregates use it.
+ *
+ * A plan keeps scratch space for the values of the current path, so it must only
+ * be used by one thread at a time.
+ */
+class AggregatePlan
+{
+    private static final long NOT_IN_SNAPSHOT = -1;
+
+    private final AggregateSpec<?>[] specs;
+    private final int[] offsets;
+    private final int[] propertyNodes;
+    private final String[] propertyKeys;
+    private final int[] specValues;
+
+    private final Node[] nodes;
+    private final Object[] properties;
+    private final long[] propertyNodeIds;
+    private final boolean[] missing;
+    private final Object[] substitutes;
+    private PropertySnapshot.Column[] snapshotColumns;
+
+    AggregatePlan( AggregateSpec<?>... specs )
+    {
+        this.specs = specs;
+
+        List<Integer> offsetList = new ArrayList<Integer>();
+        List<Integer> propertyNodeList = new ArrayList<Integer>();
+        List<String> propertyKeyList = new ArrayList<String>();
+        specValues = new int[specs.length];
+
+        for ( int i = 0; i < specs.length; i++ )
+        {
+            AggregateSpec<?> spec = specs[i];
+            int node = offsetList.indexOf( spec.offset );
+            if ( node == -1 )
+            {
+                node = offsetList.size();
+                offsetList.add( spec.offset );
+            }
+
+            if ( spec.key == null )
+            {
+                specValues[i] = node;
+                continue;
+            }
+
+            int property = -1;
+            for ( int j = 0; j < propertyKeyList.size(); j++ )
+            {
+                if ( propertyNodeList.get( j ) == node && propertyKeyList.get( j ).equals( spec.key ) )
+                {
+                    property = j;
+                    break;
+                }
+            }
+            if ( property == -1 )
+            {
+                property = propertyKeyList.size();
+                propertyNodeList.add( node );
+                propertyKeyList.add( spec.key );
+            }
+            specValues[i] = property;
+        }
+
+        offsets = new int[offsetList.size()];
+        for ( int i = 0; i < offsets.length; i++ )
+        {
+            offsets[i] = offsetList.get( i );
+        }
+        propertyNodes = new int[propertyNodeList.size()];
+        for ( int i = 0; i < propertyNodes.length; i++ )
+        {
+            propertyNodes[i] = propertyNodeList.get( i );
+        }
+        propertyKeys = propertyKeyList.toArray( new String[propertyKeyList.size()] );
+
+        nodes = new Node[offsets.length];
+        properties = new Object[propertyKeys.length];
+        propertyNodeIds = new long[propertyKeys.length];
+        missing = new boolean[specs.length];
+        substitutes = new Object[specs.length];
+    }
+
+    /**
+     * Reads the properties that are in the snapshot from it, instead of from the nodes.
+     */
+    void readFrom( PropertySnapshot snapshot )
+    {
+        snapshotColumns = new PropertySnapshot.Column[propertyKeys.length];
+        for ( int i = 0; i < propertyKeys.length; i++ )
+        {
+            snapshotColumns[i] = snapshot.column( propertyKeys[i] );
+        }
+    }
+
+    /**
+     * @return The number of aggregates.
+     */
+    int width()
+    {
+        return specs.length;
+    }
+
+    AggregateColumn<?>[] newColumns()
+    {
+        AggregateColumn<?>[] columns = new AggregateColumn<?>[specs.length];
+        for ( int i = 0; i < specs.length; i++ )
+        {
+            columns[i] = specs[i].newColumn();
+        }
+        return columns;
+    }
+
+    void addGroup( AggregateColumn<?>[] columns, int group )
+    {
+        for ( AggregateColumn<?> column : columns )
+        {
+            column.addGroup( group );
+        }
+    }
+
+    /**
+     * Gives the columns the values of the path last read.
+     */
+    void accumulateRead( AggregateColumn<?>[] columns, int group )
+    {
+        for ( int i = 0; i < columns.length; i++ )
+        {
+            if ( missing[i] )
+            {
+                accumulate( i, columns[i], group, substitutes[i] );
+            }
+            else if ( specs[i].key == null )
+            {
+                columns[i].accumulate( group, nodes[specValues[i]] );
+            }
+            else if ( isNumericSnapshot( specValues[i] ) )
+            {
+                accumulateSnapshot( columns[i], group, snapshotColumns[specValues[i]],
+                        propertyNodeIds[specValues[i]] );
+            }
+            else
+            {
+                accumulateProperty( columns[i], group, properties[specValues[i]] );
+            }
+        }
+    }
+
+    /**
+     * @return The value every aggregate takes from the path, the node or the property
+     *         of the node, in the order the aggregates were given, or null if the
+     *         path is to be skipped. A value is null where it is to be left out.
+     */
+    Object[] values( PathAccess path )
+    {
+        if ( !read( path ) )
+        {
+            return null;
+        }
+        Object[] values = new Object[specs.length];
+        for ( int i = 0; i < specs.length; i++ )
+        {
+            if ( missing[i] )
+            {
+                values[i] = substitutes[i];
+            }
+            else
+            {
+                values[i] = specs[i].key == null ? nodes[specValues[i]] : property( specValues[i] );
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Gives a column a value earlier read by values.
+     */
+    void accumulate( int spec, AggregateColumn<?> column, int group, Object value )
+    {
+        if ( value == null )
+        {
+            return;
+        }
+        if ( specs[spec].key == null )
+        {
+            column.accumulate( group, value );
+        }
+        else
+        {
+            accumulateProperty( column, group, value );
+        }
+    }
+
+    /**
+     * Reads the nodes and properties of a path. Missing properties are handled by
+     * the policies of the aggregates.
+     *
+     * @return False if the path is to be skipped.
+     */
+    boolean read( PathAccess path )
+    {
+        for ( int i = 0; i < offsets.length; i++ )
+        {
+            nodes[i] = path.findNode( offsets[i] );
+        }
+        for ( int i = 0; i < propertyKeys.length; i++ )
+        {
+            Node node = nodes[propertyNodes[i]];
+            if ( node == null )
+            {
+                properties[i] = null;
+            }
+            else if ( snapshotColumns == null || snapshotColumns[i] == null )
+            {
+                properties[i] = path.findProperty( node, propertyKeys[i] );
+            }
+            else if ( !snapshotColumns[i].has( node.getId() ) )
+            {
+                properties[i] = null;
+                propertyNodeIds[i] = NOT_IN_SNAPSHOT;
+            }
+            else if ( snapshotColumns[i].isNumeric() )
+            {
+                // Read as a primitive when accumulated
+                propertyNodeIds[i] = node.getId();
+            }
+            else
+            {
+                properties[i] = snapshotColumns[i].get( node.getId() );
+            }
+        }
+        return checkMissing();
+    }
+
+    private boolean isMissing( int property )
+    {
+        if ( nodes[propertyNodes[property]] == null )
+        {
+            return true;
+        }
+        return isNumericSnapshot( property ) ? propertyNodeIds[property] == NOT_IN_SNAPSHOT : properties[property] == null;
+    }
+
+    private boolean checkMissing()
+    {
+        for ( int i = 0; i < specs.length; i++ )
+        {
+            missing[i] = false;
+            Object value;
+            if ( specs[i].key == null )
+            {
+                if ( nodes[specValues[i]] != null )
+                {
+                    continue;
+                }
+                value = specs[i].ifMissing.valueForMissing( "Offset points to outside the path: ", specs[i].offset );
+            }
+            else
+            {
+                if ( !isMissing( specValues[i] ) )
+                {
+                    continue;
+                }
+                value = specs[i].ifMissing.valueForMissing( "Did not find property ", specs[i].key );
+            }
+
+            if ( value == MissingPolicy.SKIPPED )
+            {
+                return false;
+            }
+            missing[i] = true;
+            substitutes[i] = value;
+        }
+        return true;
+    }
+
+    /**
+     * @return True if a node counted from the start of the path is missing a property
+     *         that is aggregated, and the policy of the aggregate skips such paths, so
+     *         no path that continues the prefix can be read. The prefix is counted
+     *         by the policy of the aggregate.
+     */
+    boolean cannotReadFrom( PathAccess prefix )
+    {
+        for ( AggregateSpec<?> spec : specs )
+        {
+            if ( spec.key != null && spec.ifMissing.skipsPath() && spec.offset > 0 && spec.offset <= prefix.length() &&
+                    !prefix.hasProperty( prefix.getNode( spec.offset ), spec.key ) )
+            {
+                spec.ifMissing.pruned();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isNumericSnapshot( int property )
+    {
+        return snapshotColumns != null && snapshotColumns[property] != null && snapshotColumns[property].isNumeric();
+    }
+
+    private Object property( int property )
+    {
+        if ( isNumericSnapshot( property ) )
+        {
+            return snapshotColumns[property].get( propertyNodeIds[property] );
+        }
+        return properties[property];
+    }
+
+    private static void accumulateSnapshot( AggregateColumn<?> column, int group,
+                                            PropertySnapshot.Column snapshotColumn, long nodeId )
+    {
+        if ( column instanceof LongAggregateColumn && snapshotColumn.type == PropertySnapshot.Type.LONG )
+        {
+            ( (LongAggregateColumn<?>)column ).accumulate( group, snapshotColumn.getLong( nodeId ) );
+        }
+        else if ( column instanceof DoubleAggregateColumn )
+        {
+            ( (DoubleAggregateColumn<?>)column ).accumulate( group, snapshotColumn.getDouble( nodeId ) );
+        }
+        else
+        {
+            column.accumulate( group, snapshotColumn.get( nodeId ) );
+        }
+    }
+
+    private static void accumulateProperty( AggregateColumn<?> column, int group, Object value )
+    {
+        if ( column instanceof LongAggregateColumn && FunctionColumn.isIntegral( value ) )
+        {
+            ( (LongAggregateColumn<?>)column ).accumulate( group, ( (Number)value ).longValue() );
+        }
+        else if ( column instanceof DoubleAggregateColumn && value instanceof Number )
+        {
+            ( (DoubleAggregateColumn<?>)column ).accumulate( group, ( (Number)value ).doubleValue() );
+        }
+        else
+        {
+            column.accumulate( group, value );
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    void merge( AggregateColumn<?>[] columns, int group, AggregateColumn<?>[] other, int otherGroup )
+    {
+        for ( int i = 0; i < columns.length; i++ )
+        {
+            ( (AggregateColumn<Object>)columns[i] ).merge( group, (AggregateColumn<Object>)other[i], otherGroup );
+        }
+    }
+
+    AggregateRow result( AggregateColumn<?>[] columns, int group )
+    {
+        Object[] results = new Object[columns.length];
+        for ( int i = 0; i < columns.length; i++ )
+        {
+            results[i] = columns[i].result( group );
+        }
+        return new AggregateRow( specs, results );
+    }
+}
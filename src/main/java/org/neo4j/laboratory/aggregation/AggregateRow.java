@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+/**
+ * The results of several aggregates for one group.
+ */
+public class AggregateRow
+{
+    private final AggregateSpec<?>[] specs;
+    private final Object[] results;
+
+    AggregateRow( AggregateSpec<?>[] specs, Object[] results )
+    {
+        this.specs = specs;
+        this.results = results;
+    }
+
+    /**
+     * Gets the result of an aggregate.
+     *
+     * @param spec One of the aggregates this row was calculated for.
+     * @return The result of the aggregate for this group.
+     */
+    @SuppressWarnings( "unchecked" )
+    public <T> T get( AggregateSpec<T> spec )
+    {
+        for ( int i = 0; i < specs.length; i++ )
+        {
+            if ( specs[i] == spec )
+            {
+                return (T)results[i];
+            }
+        }
+
+        throw new IllegalArgumentException( "This row does not contain the given aggregate" );
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.laboratory.aggregation.aggregates.AggregateColumn;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateColumnFactory;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateFunctionFactory;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateNodeFunctionFactory;
+
+/**
+ * An aggregate declared up front, before any paths have been seen. Knows which
+ * node in the path to look at, which property on it to read, and creates the
+ * column that keeps the state of the aggregate for all groups.
+ */
+public abstract class AggregateSpec<T>
+{
+    final int offset;
+    final String key;
+    final MissingPolicy ifMissing;
+
+    AggregateSpec( int offset, String key, MissingPolicy ifMissing )
+    {
+        this.offset = offset;
+        this.key = key;
+        this.ifMissing = ifMissing;
+    }
+
+    abstract AggregateColumn<T> newColumn();
+
+    /**
+     * An aggregate over nodes.
+     *
+     * @param offset          Points out the node to aggregate, the same way as for groupByNode.
+     * @param functionFactory The aggregate function to use.
+     * @return An aggregate that can be passed to Grouping.aggregate.
+     */
+    public static <T> AggregateSpec<T> node( int offset,
+                                             final AggregateNodeFunctionFactory<T> functionFactory )
+    {
+        return node( offset, functionFactory, MissingPolicy.fail() );
+    }
+
+    /**
+     * An aggregate over nodes, with a policy for paths too short to have the node.
+     * A default given to the policy must be a node.
+     *
+     * @param offset          Points out the node to aggregate, the same way as for groupByNode.
+     * @param functionFactory The aggregate function to use.
+     * @param ifMissing       What to do with paths where the offset points outside the path.
+     * @return An aggregate that can be passed to Grouping.aggregate.
+     */
+    public static <T> AggregateSpec<T> node( int offset,
+                                             final AggregateNodeFunctionFactory<T> functionFactory,
+                                             MissingPolicy ifMissing )
+    {
+        return new AggregateSpec<T>( offset, null, ifMissing )
+        {
+            @SuppressWarnings( "unchecked" )
+            AggregateColumn<T> newColumn()
+            {
+                if ( functionFactory instanceof AggregateColumnFactory )
+                {
+                    return ( (AggregateColumnFactory<T>)functionFactory ).newColumn();
+                }
+                return new NodeFunctionColumn<T>( functionFactory );
+            }
+        };
+    }
+
+    /**
+     * An aggregate over a node property.
+     *
+     * @param offset          Points out the node to aggregate, the same way as for groupByNode.
+     * @param key             The property on the node to aggregate.
+     * @param functionFactory The aggregate function to use.
+     * @return An aggregate that can be passed to Grouping.aggregate.
+     */
+    public static <T> AggregateSpec<T> nodeProperty( int offset, String key,
+                                                     final AggregateFunctionFactory<T> functionFactory )
+    {
+        return nodeProperty( offset, key, functionFactory, MissingPolicy.fail() );
+    }
+
+    /**
+     * An aggregate over a node property, with a policy for paths where the node does
+     * not have the property.
+     *
+     * @param offset          Points out the node to aggregate, the same way as for groupByNode.
+     * @param key             The property on the node to aggregate.
+     * @param functionFactory The aggregate function to use.
+     * @param ifMissing       What to do with paths where the property is missing.
+     * @return An aggregate that can be passed to Grouping.aggregate.
+     */
+    public static <T> AggregateSpec<T> nodeProperty( int offset, String key,
+                                                     final AggregateFunctionFactory<T> functionFactory,
+                                                     MissingPolicy ifMissing )
+    {
+        return new AggregateSpec<T>( offset, key, ifMissing )
+        {
+            @SuppressWarnings( "unchecked" )
+            AggregateColumn<T> newColumn()
+            {
+                if ( functionFactory instanceof AggregateColumnFactory )
+                {
+                    return ( (AggregateColumnFactory<T>)functionFactory ).newColumn();
+                }
+                return new FunctionColumn<T>( functionFactory );
+            }
+        };
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.traversal.Evaluation;
+import org.neo4j.graphdb.traversal.Evaluator;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.helpers.Predicate;
+
+import java.util.Map;
+
+/**
+ * Aggregates inside the traversal itself. Added to a traversal description, it folds
+ * every path it is to aggregate into the accumulators of its group as the traversal
+ * reaches it, and excludes all paths, so the traverser hands out no paths at all and
+ * none are kept.
+ *
+ * Branches that cannot give any path a key or a value are pruned: once a node
+ * counted from the start of the path, or the first relationship of a type, is
+ * missing a property that is grouped by or aggregated with the skip path policy,
+ * the traversal does not go past it. Other missing values follow their policy when
+ * the path is aggregated, so the fail policy ends the traversal with an exception.
+ *
+ * The evaluator holds the running aggregates, so it belongs to one traversal and
+ * must only be used by one thread at a time.
+ */
+public class AggregatingEvaluator<T> implements Evaluator
+{
+    private final StreamingAggregation<T> aggregation;
+    private final GroupingDescription groupingDescription;
+    private final AggregatePlan plan;
+    private final Predicate<Path> aggregateWhere;
+    private final GroupedAggregates aggregates;
+    private final PropertyMemo propertyMemo = new PropertyMemo();
+    private final PathAccess pathAccess = new PathAccess( propertyMemo );
+    private long aggregatedPaths;
+    private long skippedPaths;
+    private long prunedPaths;
+
+    AggregatingEvaluator( StreamingAggregation<T> aggregation, GroupingDescription groupingDescription,
+                          AggregateSpec<?>[] aggregateSpecs, Predicate<Path> aggregateWhere )
+    {
+        this.aggregation = aggregation;
+        this.groupingDescription = groupingDescription;
+        this.plan = new AggregatePlan( aggregateSpecs );
+        this.aggregateWhere = aggregateWhere;
+        this.aggregates = new GroupedAggregates( groupingDescription, plan );
+    }
+
+    public Evaluation evaluate( Path path )
+    {
+        pathAccess.reset( path );
+        if ( groupingDescription.cannotMakeKeyFrom( pathAccess ) || plan.cannotReadFrom( pathAccess ) )
+        {
+            prunedPaths++;
+            return Evaluation.EXCLUDE_AND_PRUNE;
+        }
+
+        if ( aggregateWhere.accept( path ) )
+        {
+            if ( aggregates.accumulate( pathAccess ) )
+            {
+                aggregatedPaths++;
+            }
+            else
+            {
+                skippedPaths++;
+            }
+        }
+        return Evaluation.EXCLUDE_AND_CONTINUE;
+    }
+
+    /**
+     * Runs a traversal with this evaluator added to it.
+     *
+     * @param traversal The traversal to run.
+     * @param startNode The node to start the traversal from.
+     * @return The aggregated value for every group.
+     */
+    public Map<Key, T> aggregate( TraversalDescription traversal, Node startNode )
+    {
+        for ( Path ignored : traversal.evaluator( this ).traverse( startNode ) )
+        {
+            // All paths are excluded, the aggregation happens in evaluate
+        }
+        return results();
+    }
+
+    /**
+     * @return The aggregated value for every group seen so far.
+     */
+    public Map<Key, T> results()
+    {
+        return aggregation.results( aggregates );
+    }
+
+    /**
+     * @return The memo node properties are read through during the traversal.
+     */
+    public PropertyMemo getPropertyMemo()
+    {
+        return propertyMemo;
+    }
+
+    /**
+     * @return The number of paths that have been aggregated.
+     */
+    public long getAggregatedPaths()
+    {
+        return aggregatedPaths;
+    }
+
+    /**
+     * @return The number of paths that were to be aggregated, but were missing a
+     *         property or relationship, and were skipped.
+     */
+    public long getSkippedPaths()
+    {
+        return skippedPaths;
+    }
+
+    /**
+     * @return The number of paths the traversal was stopped at.
+     */
+    public long getPrunedPaths()
+    {
+        return prunedPaths;
+    }
+}
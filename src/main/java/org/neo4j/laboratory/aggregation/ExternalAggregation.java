@@ -0,0 +1,316 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.traversal.Traverser;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateColumn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The results of a streaming aggregation with more groups than fit in memory. At
+ * most a given number of groups are aggregated in memory at a time. The paths of
+ * the groups that do not fit are written to temporary files, split in partitions by
+ * the hash of their key, and every partition is then aggregated on its own the same
+ * way. A partition that still has too many groups is split again, with another hash.
+ *
+ * The results are handed out one group at a time, and only the groups of one
+ * partition are in memory at once. Every temporary file is deleted as soon as it has
+ * been read. Close the results to delete the files if not all results are read.
+ *
+ * Descriptions with grouping sets, like rollup and cube, are not supported, since
+ * the groups of a level are spread over all the partitions.
+ */
+public class ExternalAggregation<T> implements Iterator<Map.Entry<Key, T>>
+{
+    private static final int PARTITIONS = 16;
+    private static final int MAX_LEVELS = 8;
+
+    private final StreamingAggregation<T> aggregation;
+    private final GroupingDescription description;
+    private final AggregatePlan plan;
+    private final GraphDatabaseService graphDb;
+    private final int maxGroupsInMemory;
+    private final File spillDirectory;
+
+    private final LinkedList<Partition> pending = new LinkedList<Partition>();
+    private KeyGroupTable groups;
+    private AggregateColumn<?>[] columns;
+    private int nextGroup;
+
+    private static class Partition
+    {
+        final SpillFile file;
+        final int level;
+
+        Partition( SpillFile file, int level )
+        {
+            this.file = file;
+            this.level = level;
+        }
+    }
+
+    /**
+     * Where the records to aggregate come from, either the traversal or a partition.
+     */
+    private interface Records
+    {
+        /**
+         * @return false when there are no more records.
+         */
+        boolean next() throws IOException;
+
+        Key key();
+
+        Object[] values();
+    }
+
+    ExternalAggregation( StreamingAggregation<T> aggregation, GroupingDescription description,
+                         AggregateSpec<?>[] specs, final Traverser traverser, GraphDatabaseService graphDb,
+                         int maxGroupsInMemory, File spillDirectory )
+    {
+        if ( maxGroupsInMemory < 1 )
+        {
+            throw new IllegalArgumentException( "At least one group has to fit in memory" );
+        }
+        if ( description.hasGroupingSets() )
+        {
+            throw new IllegalArgumentException( "Grouping sets are not supported by external aggregation" );
+        }
+        this.aggregation = aggregation;
+        this.description = description;
+        this.plan = new AggregatePlan( specs );
+        this.graphDb = graphDb;
+        this.maxGroupsInMemory = maxGroupsInMemory;
+        this.spillDirectory = spillDirectory;
+
+        aggregate( new Records()
+        {
+            private final Iterator<Path> paths = traverser.iterator();
+            private final PathAccess pathAccess = new PathAccess( new PropertyMemo() );
+            private Key key;
+            private Object[] values;
+
+            public boolean next()
+            {
+                while ( paths.hasNext() )
+                {
+                    pathAccess.reset( paths.next() );
+                    key = description.getGroupingKey( pathAccess );
+                    values = key == null ? null : plan.values( pathAccess );
+                    if ( values != null )
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            public Key key()
+            {
+                return key;
+            }
+
+            public Object[] values()
+            {
+                return values;
+            }
+        }, 0 );
+    }
+
+    public boolean hasNext()
+    {
+        while ( nextGroup == groups.size() && !pending.isEmpty() )
+        {
+            aggregate( pending.removeFirst() );
+        }
+        return nextGroup < groups.size();
+    }
+
+    public Map.Entry<Key, T> next()
+    {
+        if ( !hasNext() )
+        {
+            throw new NoSuchElementException();
+        }
+        int group = nextGroup++;
+        return new AbstractMap.SimpleImmutableEntry<Key, T>( groups.keyAt( group ),
+                aggregation.result( plan.result( columns, group ) ) );
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Deletes the temporary files that have not been read yet.
+     */
+    public void close()
+    {
+        while ( !pending.isEmpty() )
+        {
+            pending.removeFirst().file.delete();
+        }
+    }
+
+    private void aggregate( final Partition partition )
+    {
+        try
+        {
+            partition.file.rewind();
+            aggregate( new Records()
+            {
+                private int read;
+                private final Object[] key = new Object[description.getKeyWidth()];
+                private Object[] values;
+
+                public boolean next() throws IOException
+                {
+                    if ( read == partition.file.records() )
+                    {
+                        return false;
+                    }
+                    read++;
+                    values = new Object[plan.width()];
+                    partition.file.read( key, values, graphDb );
+                    return true;
+                }
+
+                public Key key()
+                {
+                    return description.getGroupingKey( key.clone() );
+                }
+
+                public Object[] values()
+                {
+                    return values;
+                }
+            }, partition.level );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Could not read spilled groups", e );
+        }
+        finally
+        {
+            partition.file.delete();
+        }
+    }
+
+    private void aggregate( Records records, int level )
+    {
+        groups = new KeyGroupTable();
+        columns = plan.newColumns();
+        nextGroup = 0;
+
+        SpillFile[] partitions = new SpillFile[PARTITIONS];
+        boolean handedOver = false;
+        try
+        {
+            while ( records.next() )
+            {
+                Key key = records.key();
+                Object[] values = records.values();
+                int group = groups.get( key );
+                if ( group == -1 )
+                {
+                    if ( groups.size() >= maxGroupsInMemory && level < MAX_LEVELS )
+                    {
+                        spill( partitions, partition( key, level ), key, values );
+                        continue;
+                    }
+                    group = groups.getOrAdd( key );
+                    plan.addGroup( columns, group );
+                }
+
+                for ( int i = 0; i < values.length; i++ )
+                {
+                    plan.accumulate( i, columns[i], group, values[i] );
+                }
+            }
+
+            for ( SpillFile file : partitions )
+            {
+                if ( file != null )
+                {
+                    pending.addFirst( new Partition( file, level + 1 ) );
+                }
+            }
+            handedOver = true;
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Could not spill groups to disk", e );
+        }
+        finally
+        {
+            if ( !handedOver )
+            {
+                // The records failed, so nothing will read the files
+                for ( SpillFile file : partitions )
+                {
+                    if ( file != null )
+                    {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private void spill( SpillFile[] partitions, int partition, Key key, Object[] values ) throws IOException
+    {
+        if ( partitions[partition] == null )
+        {
+            partitions[partition] = new SpillFile( spillDirectory );
+        }
+        Object[] keyValues = new Object[key.width()];
+        for ( int i = 0; i < keyValues.length; i++ )
+        {
+            keyValues[i] = key.valueAt( i );
+        }
+        partitions[partition].write( keyValues, values );
+    }
+
+    /**
+     * Picks a partition from the hash of the key, mixed with the level, so that a
+     * partition that is split again spreads over all the new partitions.
+     */
+    private static int partition( Key key, int level )
+    {
+        int hash = key.hashCode() ^ ( level * 0x9E3779B9 );
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return ( hash >>> 1 ) % PARTITIONS;
+    }
+}
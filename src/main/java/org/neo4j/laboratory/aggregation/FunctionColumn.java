@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.laboratory.aggregation.aggregates.AggregateColumn;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateFunction;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateFunctionFactory;
+import org.neo4j.laboratory.aggregation.aggregates.DoubleAggregateFunction;
+import org.neo4j.laboratory.aggregation.aggregates.LongAggregateFunction;
+
+import java.util.Arrays;
+
+/**
+ * A column for aggregate functions that have no column of their own, keeping one
+ * function object per group. If the functions take primitive values and the
+ * property is numeric, the value is handed over as a long or a double.
+ */
+class FunctionColumn<T> implements AggregateColumn<T>
+{
+    private final AggregateFunctionFactory<T> functionFactory;
+    private AggregateFunction<T>[] functions = newArray( GroupTable.INITIAL_CAPACITY );
+
+    FunctionColumn( AggregateFunctionFactory<T> functionFactory )
+    {
+        this.functionFactory = functionFactory;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static <T> AggregateFunction<T>[] newArray( int size )
+    {
+        return new AggregateFunction[size];
+    }
+
+    public void addGroup( int group )
+    {
+        if ( group == functions.length )
+        {
+            functions = Arrays.copyOf( functions, group * 2 );
+        }
+        functions[group] = functionFactory.newGrouping();
+    }
+
+    public void accumulate( int group, Object value )
+    {
+        AggregateFunction<T> function = functions[group];
+        if ( function instanceof LongAggregateFunction && isIntegral( value ) )
+        {
+            ( (LongAggregateFunction<T>)function ).accumulate( ( (Number)value ).longValue() );
+        }
+        else if ( function instanceof DoubleAggregateFunction && value instanceof Number )
+        {
+            ( (DoubleAggregateFunction<T>)function ).accumulate( ( (Number)value ).doubleValue() );
+        }
+        else
+        {
+            function.accumulate( value );
+        }
+    }
+
+    static boolean isIntegral( Object value )
+    {
+        return value instanceof Long || value instanceof Integer ||
+                value instanceof Short || value instanceof Byte;
+    }
+
+    public void merge( int group, AggregateColumn<T> other, int otherGroup )
+    {
+        functions[group].merge( ( (FunctionColumn<T>)other ).functions[otherGroup] );
+    }
+
+    public T result( int group )
+    {
+        return functions[group].result();
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+/**
+ * Numbers the groups of a grouping. Every distinct key is given a group number,
+ * starting at 0, and the aggregate state of the group is kept at that position in
+ * the aggregate columns.
+ *
+ * The table uses open addressing with linear probing over a long array, where each
+ * slot holds the hash of a key next to its group number, so probing only touches
+ * the key itself when the hashes match. When the table fills up, a twice as large
+ * array is allocated, and the entries of the old one are moved over a few at a time
+ * on every following insert, so growing never stops to rehash the whole table at
+ * once. Until the move is done, lookups check both arrays.
+ */
+abstract class GroupTable
+{
+    static final int INITIAL_CAPACITY = 16;
+    static final int ESTIMATED_VALUE_BYTES = 48;
+    private static final int MOVES_PER_INSERT = 4;
+
+    private long[] slots = new long[INITIAL_CAPACITY];
+    private long[] oldSlots;
+    private int moved;
+    private int size;
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return The key of a group.
+     */
+    abstract Key keyAt( int group );
+
+    /**
+     * Finds the group in this table with the same key as a group in another table
+     * of the same kind, adding a new group if there is none.
+     */
+    abstract int getOrAddFrom( GroupTable other, int otherGroup );
+
+    abstract boolean matches( int group, Object key );
+
+    abstract void storeKey( int group, Object key );
+
+    /**
+     * @return A rough estimate of the bytes held by the keys, counting every key
+     *         object or dictionary value as ESTIMATED_VALUE_BYTES.
+     */
+    abstract long estimatedKeyBytes();
+
+    /**
+     * @return A rough estimate of the bytes held by the table and its keys.
+     */
+    final long estimatedBytes()
+    {
+        long slotCount = slots.length + ( oldSlots == null ? 0 : oldSlots.length );
+        return 8 * slotCount + estimatedKeyBytes();
+    }
+
+    /**
+     * Finds the group of a key, adding a new group if the key has not been seen before.
+     * A new group always gets the number size() had before the call.
+     */
+    final int getOrAdd( Object key, int hash )
+    {
+        int group = get( key, hash );
+        if ( group != -1 )
+        {
+            return group;
+        }
+
+        group = size++;
+        storeKey( group, key );
+        insert( slots, ( (long)hash << 32 ) | ( group + 1 ) );
+
+        if ( oldSlots != null )
+        {
+            moveSome();
+        }
+        else if ( size * 4 > slots.length * 3 )
+        {
+            oldSlots = slots;
+            slots = new long[slots.length * 2];
+            moved = 0;
+        }
+        return group;
+    }
+
+    /**
+     * Finds the group of a key.
+     *
+     * @return The group, or -1 if the key has not been seen before.
+     */
+    final int get( Object key, int hash )
+    {
+        int group = find( slots, key, hash );
+        if ( group == -1 && oldSlots != null )
+        {
+            group = find( oldSlots, key, hash );
+        }
+        return group;
+    }
+
+    private int find( long[] table, Object key, int hash )
+    {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while ( table[slot] != 0 )
+        {
+            long entry = table[slot];
+            if ( (int)( entry >>> 32 ) == hash )
+            {
+                int group = (int)entry - 1;
+                if ( matches( group, key ) )
+                {
+                    return group;
+                }
+            }
+            slot = ( slot + 1 ) & mask;
+        }
+        return -1;
+    }
+
+    private void insert( long[] table, long entry )
+    {
+        int mask = table.length - 1;
+        int slot = (int)( entry >>> 32 ) & mask;
+        while ( table[slot] != 0 )
+        {
+            slot = ( slot + 1 ) & mask;
+        }
+        table[slot] = entry;
+    }
+
+    private void moveSome()
+    {
+        for ( int i = 0; i < MOVES_PER_INSERT && moved < oldSlots.length; i++, moved++ )
+        {
+            if ( oldSlots[moved] != 0 )
+            {
+                insert( slots, oldSlots[moved] );
+            }
+        }
+
+        if ( moved == oldSlots.length )
+        {
+            oldSlots = null;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.laboratory.aggregation.aggregates.AggregateColumn;
+
+import java.util.Map;
+
+/**
+ * The running aggregates of a streaming aggregation: a group table that numbers the
+ * groups, and one column per aggregate holding the state of every group.
+ */
+class GroupedAggregates
+{
+    private final GroupingDescription groupingDescription;
+    private final AggregatePlan plan;
+    private final GroupTable groups;
+    private final AggregateColumn<?>[] columns;
+    private final long[] ids;
+
+    GroupedAggregates( GroupingDescription groupingDescription, AggregatePlan plan )
+    {
+        this.groupingDescription = groupingDescription;
+        this.plan = plan;
+        this.columns = plan.newColumns();
+        if ( groupingDescription.groupsByCodesOnly() )
+        {
+            this.groups = new LongGroupTable( groupingDescription );
+            this.ids = new long[groupingDescription.getKeyWidth()];
+        }
+        else
+        {
+            this.groups = new KeyGroupTable();
+            this.ids = null;
+        }
+    }
+
+    /**
+     * Adds a path to its group. The key and the values are read from the path before
+     * anything is changed, so a path that is skipped or fails leaves the aggregates
+     * as they were.
+     *
+     * @return False if the path was skipped, see MissingPolicy.
+     */
+    boolean accumulate( PathAccess path )
+    {
+        Key key = null;
+        if ( ids != null )
+        {
+            if ( !groupingDescription.getGroupingCodes( path, ids, ( (LongGroupTable)groups ).dictionary() ) )
+            {
+                return false;
+            }
+        }
+        else
+        {
+            key = groupingDescription.getGroupingKey( path );
+            if ( key == null )
+            {
+                return false;
+            }
+        }
+        if ( !plan.read( path ) )
+        {
+            return false;
+        }
+
+        int groupCount = groups.size();
+        int group = key == null ? ( (LongGroupTable)groups ).getOrAdd( ids ) : ( (KeyGroupTable)groups ).getOrAdd( key );
+        if ( group == groupCount )
+        {
+            plan.addGroup( columns, group );
+        }
+        plan.accumulateRead( columns, group );
+        return true;
+    }
+
+    /**
+     * Adds the aggregates of another instance, made from the same description and
+     * aggregates, to this one.
+     */
+    void merge( GroupedAggregates other )
+    {
+        for ( int otherGroup = 0; otherGroup < other.groups.size(); otherGroup++ )
+        {
+            int groupCount = groups.size();
+            int group = groups.getOrAddFrom( other.groups, otherGroup );
+            if ( group == groupCount )
+            {
+                plan.addGroup( columns, group );
+            }
+            plan.merge( columns, group, other.columns, otherGroup );
+        }
+    }
+
+    Map<Key, AggregateRow> results()
+    {
+        return groupingDescription.results( groups, plan, columns );
+    }
+}
@@ -21,22 +21,37 @@
 package org.neo4j.laboratory.aggregation;
 
 import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.traversal.Traverser;
-import org.neo4j.laboratory.aggregation.aggregates.AggregateFunction;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateColumn;
 import org.neo4j.laboratory.aggregation.aggregates.AggregateFunctionFactory;
-import org.neo4j.laboratory.aggregation.aggregates.AggregateNodeFunction;
 import org.neo4j.laboratory.aggregation.aggregates.AggregateNodeFunctionFactory;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class Grouping
 {
-    private final Map<Key, List<Path>> groupings = new HashMap<Key, List<Path>>();
+    private static final int ESTIMATED_COLUMN_BYTES = 16;
+
+    private final GroupingDescription groupingDescription;
+    private final GroupTable groups;
+
+    /*
+     * The paths of every group are kept as a chain through the path array: the
+     * first and last path of a group, and for every path the one after it.
+     */
+    private Path[] paths = new Path[GroupTable.INITIAL_CAPACITY];
+    private int[] nextPath = new int[GroupTable.INITIAL_CAPACITY];
+    private int pathCount;
+    private int[] firstPath = new int[GroupTable.INITIAL_CAPACITY];
+    private int[] lastPath = new int[GroupTable.INITIAL_CAPACITY];
+
+    private PropertySnapshot snapshot;
+    private PropertyMemo propertyMemo;
+    private GroupingProfile profile;
 
     /**
      * Creates a new GroupingDescription.
@@ -52,97 +67,262 @@ public class Grouping
     public Grouping( GroupingDescription groupingDescription,
                      Traverser traverser )
     {
-        for ( Path p : traverser )
+        this.groupingDescription = groupingDescription;
+        this.propertyMemo = new PropertyMemo();
+        GroupingProfile run = GroupingMetrics.instance().start( "group" );
+        PathAccess pathAccess = new PathAccess( propertyMemo );
+        long clock = run.clock();
+        if ( groupingDescription.groupsByCodesOnly() )
         {
-            Key key = groupingDescription.getGroupingKey( p );
-            if ( !groupings.containsKey( key ) )
+            LongGroupTable table = new LongGroupTable( groupingDescription );
+            long[] codes = new long[groupingDescription.getKeyWidth()];
+            for ( Path p : traverser )
             {
-                groupings.put( key, new ArrayList<Path>() );
+                clock = run.traversed( clock );
+                run.pathConsumed();
+                if ( groupingDescription.getGroupingCodes( pathAccess.reset( p ), codes, table.dictionary() ) )
+                {
+                    int groupCount = table.size();
+                    int group = table.getOrAdd( codes );
+                    addPath( group, group == groupCount, p );
+                }
+                else
+                {
+                    run.pathSkipped();
+                }
+                clock = run.keyMade( clock );
             }
-
-            groupings.get( key ).add( p );
+            groups = table;
         }
+        else
+        {
+            KeyGroupTable table = new KeyGroupTable();
+            for ( Path p : traverser )
+            {
+                clock = run.traversed( clock );
+                run.pathConsumed();
+                Key key = groupingDescription.getGroupingKey( pathAccess.reset( p ) );
+                if ( key != null )
+                {
+                    int groupCount = table.size();
+                    int group = table.getOrAdd( key );
+                    addPath( group, group == groupCount, p );
+                }
+                else
+                {
+                    run.pathSkipped();
+                }
+                clock = run.keyMade( clock );
+            }
+            groups = table;
+        }
+        run.traversed( clock );
+        this.profile = run.finish( groups.size(), propertyMemo, estimatedBytes() );
     }
 
-    public <T> Map<Key, T> aggregateNode( int offset,
-                                          AggregateNodeFunctionFactory<T> functionFactory )
+    /**
+     * @return A rough estimate of the bytes held by the paths and the group table.
+     */
+    private long estimatedBytes()
+    {
+        return 12L * paths.length + 8L * firstPath.length + groups.estimatedBytes();
+    }
+
+    private void addPath( int group, boolean newGroup, Path path )
     {
-        Map<Key, T> resultMap = new HashMap<Key, T>( groupings.size() );
-        for ( Key key : groupings.keySet() )
+        if ( pathCount == paths.length )
         {
-            AggregateNodeFunction<T> aggregateFunction = functionFactory.newGrouping();
-            List<Path> groupedPaths = groupings.get( key );
-            for ( Path path : groupedPaths )
+            paths = Arrays.copyOf( paths, pathCount * 2 );
+            nextPath = Arrays.copyOf( nextPath, pathCount * 2 );
+        }
+        int index = pathCount++;
+        paths[index] = path;
+        nextPath[index] = -1;
+
+        if ( newGroup )
+        {
+            if ( group == firstPath.length )
             {
-                Node valueNode = getNodeByOffset( path, offset );
-                aggregateFunction.accumulate( valueNode );
+                firstPath = Arrays.copyOf( firstPath, group * 2 );
+                lastPath = Arrays.copyOf( lastPath, group * 2 );
             }
-
-            resultMap.put( key, aggregateFunction.result() );
+            firstPath[group] = index;
         }
-        return resultMap;
+        else
+        {
+            nextPath[lastPath[group]] = index;
+        }
+        lastPath[group] = index;
+    }
+
+    /**
+     * Makes the aggregates of this grouping read the properties that are in the
+     * snapshot from it, instead of from the nodes. Properties that are not in the
+     * snapshot are still read from the nodes.
+     *
+     * @param snapshot The snapshot to read from, or null to read from the nodes again.
+     * @return This grouping.
+     */
+    public Grouping readingFrom( PropertySnapshot snapshot )
+    {
+        this.snapshot = snapshot;
+        return this;
+    }
+
+    /**
+     * Gets the memo node properties were read through the last time the paths were
+     * gone through, when they were grouped or aggregated. Every run gets a memo of
+     * its own, so properties changed between runs are seen.
+     *
+     * @return The memo, with the number of reads it answered.
+     */
+    public PropertyMemo getPropertyMemo()
+    {
+        return propertyMemo;
+    }
+
+    /**
+     * Gets the profile of the last time the paths were gone through, when they were
+     * grouped or aggregated. Times are only measured while GroupingMetrics is enabled.
+     *
+     * @return The profile, which prints as a summary of the run.
+     */
+    public GroupingProfile getProfile()
+    {
+        return profile;
+    }
+
+    public <T> Map<Key, T> aggregateNode( int offset,
+                                          AggregateNodeFunctionFactory<T> functionFactory )
+    {
+        return aggregate( AggregateSpec.node( offset, functionFactory ) );
     }
 
     public <T> Map<Key, T> aggregateNodeProperty( int offset, String key,
                                                   AggregateFunctionFactory<T> functionFactory )
     {
-        Map<Key, T> resultMap = new HashMap<Key, T>( groupings.size() );
+        return aggregate( AggregateSpec.nodeProperty( offset, key, functionFactory ) );
+    }
+
+    private <T> Map<Key, T> aggregate( AggregateSpec<T> aggregateSpec )
+    {
+        Map<Key, AggregateRow> rows = aggregate( new AggregateSpec<?>[]{aggregateSpec} );
 
-        for ( Key groupingKey : groupings.keySet() )
+        Map<Key, T> resultMap = new HashMap<Key, T>( rows.size() * 2 );
+        for ( Map.Entry<Key, AggregateRow> entry : rows.entrySet() )
         {
-            AggregateFunction<T> aggregateFunction = functionFactory.newGrouping();
-            List<Path> groupedPaths = groupings.get( groupingKey );
-            for ( Path path : groupedPaths )
-            {
-                Node valueNode = getNodeByOffset( path, offset );
-                Object value = valueNode.getProperty( key );
-                aggregateFunction.accumulate( value );
-            }
-            resultMap.put( groupingKey, aggregateFunction.result() );
+            resultMap.put( entry.getKey(), entry.getValue().get( aggregateSpec ) );
         }
-
         return resultMap;
     }
 
-    public static Node getNodeByOffset( Path path, int offset )
+    /**
+     * Calculates several aggregates in one pass over the grouped paths. Every node
+     * and property is read once per path, no matter how many of the aggregates use it.
+     *
+     * @param aggregateSpecs The aggregates to calculate.
+     * @return One row per group, holding the result of every aggregate.
+     */
+    public Map<Key, AggregateRow> aggregate( AggregateSpec<?>... aggregateSpecs )
     {
-        if ( offset == 0 )
+        AggregatePlan plan = newPlan( aggregateSpecs );
+        return groupingDescription.results( groups, plan, accumulate( "aggregate", plan ) );
+    }
+
+    /**
+     * Calculates an aggregate and keeps only the best groups, like ORDER BY ... LIMIT.
+     * Only the best groups so far are held on to while the groups are gone through,
+     * so no map of all the groups is built and nothing has to be sorted afterwards.
+     * Groups with equal results are ordered by their keys.
+     *
+     * @param limit         The most groups to return.
+     * @param order         Whether the smallest or the largest results are the best.
+     * @param aggregateSpec The aggregate to calculate.
+     * @return The best groups and their results, best first.
+     */
+    public <T extends Comparable<? super T>> Map<Key, T> top( int limit, SortOrder order,
+                                                             AggregateSpec<T> aggregateSpec )
+    {
+        return top( limit, order.<T>comparator(), aggregateSpec );
+    }
+
+    /**
+     * Calculates an aggregate and keeps only the best groups, where the order of the
+     * results is given by a comparator. Groups with equal results are ordered by
+     * their keys.
+     *
+     * @param limit         The most groups to return.
+     * @param order         Orders the results, best first.
+     * @param aggregateSpec The aggregate to calculate.
+     * @return The best groups and their results, best first.
+     */
+    @SuppressWarnings( "unchecked" )
+    public <T> Map<Key, T> top( int limit, Comparator<? super T> order,
+                                AggregateSpec<T> aggregateSpec )
+    {
+        TopGroups<T> top = new TopGroups<T>( limit, order );
+        if ( groupingDescription.hasGroupingSets() )
         {
-            return path.endNode();
+            for ( Map.Entry<Key, T> entry : aggregate( aggregateSpec ).entrySet() )
+            {
+                top.offer( entry.getKey(), entry.getValue() );
+            }
+            return top.result();
         }
 
-        if ( offset > 0 )
+        AggregateColumn<T> column = (AggregateColumn<T>)accumulate( "top", newPlan( aggregateSpec ) )[0];
+        for ( int group = 0; group < groups.size(); group++ )
         {
-            return getNodeFromTheStart( path, offset );
+            top.offer( groups.keyAt( group ), column.result( group ) );
         }
-
-        ArrayList<Node> list = copyNodesToList( path );
-        offset = path.length() + offset;
-
-        return list.get( offset );
+        return top.result();
     }
 
-    private static ArrayList<Node> copyNodesToList( Path path )
+    private AggregatePlan newPlan( AggregateSpec<?>... aggregateSpecs )
     {
-        ArrayList<Node> list = new ArrayList<Node>( path.length() );
-        for ( Node node : path.nodes() )
+        AggregatePlan plan = new AggregatePlan( aggregateSpecs );
+        if ( snapshot != null )
         {
-            list.add( node );
+            plan.readFrom( snapshot );
         }
-        return list;
+        return plan;
     }
 
-    private static Node getNodeFromTheStart( Path path, int offset )
+    private AggregateColumn<?>[] accumulate( String operation, AggregatePlan plan )
     {
-        int i = 0;
-        for ( Node node : path.nodes() )
+        GroupingProfile run = GroupingMetrics.instance().start( operation );
+        long clock = run.clock();
+        AggregateColumn<?>[] columns = plan.newColumns();
+        propertyMemo = new PropertyMemo();
+        PathAccess pathAccess = new PathAccess( propertyMemo );
+        for ( int group = 0; group < groups.size(); group++ )
         {
-            if ( i == offset )
+            plan.addGroup( columns, group );
+            for ( int index = firstPath[group]; index != -1; index = nextPath[index] )
             {
-                return node;
+                run.pathConsumed();
+                if ( plan.read( pathAccess.reset( paths[index] ) ) )
+                {
+                    plan.accumulateRead( columns, group );
+                }
+                else
+                {
+                    run.pathSkipped();
+                }
             }
-            i++;
         }
-        throw new NotFoundException( "Offset points to outside the path" );
+        run.accumulated( clock );
+        long columnBytes = (long)ESTIMATED_COLUMN_BYTES * columns.length * groups.size();
+        profile = run.finish( groups.size(), propertyMemo, estimatedBytes() + columnBytes );
+        return columns;
+    }
+
+    /**
+     * Finds a node in a path. When several nodes are needed from the same path,
+     * use a PathAccess instead, which remembers the nodes it has walked past.
+     */
+    public static Node getNodeByOffset( Path path, int offset )
+    {
+        return new PathAccess().reset( path ).getNode( offset );
     }
 }
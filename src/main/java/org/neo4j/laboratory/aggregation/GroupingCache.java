@@ -0,0 +1,405 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the results of aggregations, so asking for the same aggregation again does
+ * not traverse and group the paths again. Results are looked up by grouping
+ * description, traversal, start node and aggregates. Grouping descriptions are
+ * compared by what they group by. Traversal descriptions and aggregate specs are
+ * compared the way their classes do, which for specs means the same instance, so
+ * keep them around instead of creating new ones for every call.
+ *
+ * Every result remembers the nodes and relationship types of the paths it was made
+ * from. When a transaction touches one of those nodes, or creates, deletes or
+ * changes a relationship of one of those types, the result is thrown away.
+ *
+ * The least recently used result is evicted when the cache is full, and results
+ * older than the time to live are evicted when they are asked for.
+ */
+public class GroupingCache
+{
+    private final GraphDatabaseService graphDb;
+    private final int maxEntries;
+    private final long timeToLiveNanos;
+    private final TransactionEventHandler<Changes> handler;
+
+    private final Map<CacheKey, CacheEntry> entries;
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    private static class CacheKey
+    {
+        final GroupingDescription description;
+        final TraversalDescription traversal;
+        final long startNode;
+        final AggregateSpec<?>[] specs;
+
+        CacheKey( GroupingDescription description, TraversalDescription traversal, long startNode,
+                  AggregateSpec<?>[] specs )
+        {
+            this.description = description;
+            this.traversal = traversal;
+            this.startNode = startNode;
+            this.specs = specs.clone();
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if ( !( o instanceof CacheKey ) )
+            {
+                return false;
+            }
+            CacheKey other = (CacheKey)o;
+            return startNode == other.startNode && description.equals( other.description ) &&
+                    traversal.equals( other.traversal ) && Arrays.equals( specs, other.specs );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = description.hashCode();
+            result = 31 * result + traversal.hashCode();
+            result = 31 * result + (int)( startNode ^ ( startNode >>> 32 ) );
+            return 31 * result + Arrays.hashCode( specs );
+        }
+    }
+
+    private static class CacheEntry
+    {
+        final Map<Key, AggregateRow> results;
+        final long created;
+        final Set<Long> nodes;
+        final Set<String> relationshipTypes;
+
+        CacheEntry( Map<Key, AggregateRow> results, long created, Set<Long> nodes, Set<String> relationshipTypes )
+        {
+            this.results = results;
+            this.created = created;
+            this.nodes = nodes;
+            this.relationshipTypes = relationshipTypes;
+        }
+    }
+
+    /**
+     * What a transaction touched. A null set means everything.
+     */
+    private static class Changes
+    {
+        Set<Long> nodes = new HashSet<Long>();
+        Set<String> relationshipTypes = new HashSet<String>();
+    }
+
+    /**
+     * @param graphDb    The database to follow changes in.
+     * @param maxEntries The most results to keep.
+     * @param timeToLive How long to keep a result, or 0 to keep it until it is evicted
+     *                   or invalidated.
+     * @param unit       The unit of the time to live.
+     */
+    public GroupingCache( GraphDatabaseService graphDb, final int maxEntries, long timeToLive, TimeUnit unit )
+    {
+        if ( maxEntries < 1 )
+        {
+            throw new IllegalArgumentException( "The cache has to have room for at least one entry" );
+        }
+        this.graphDb = graphDb;
+        this.maxEntries = maxEntries;
+        this.timeToLiveNanos = unit.toNanos( timeToLive );
+        this.entries = new LinkedHashMap<CacheKey, CacheEntry>( 16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<CacheKey, CacheEntry> eldest )
+            {
+                if ( size() > GroupingCache.this.maxEntries )
+                {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        handler = new TransactionEventHandler<Changes>()
+        {
+            public Changes beforeCommit( TransactionData data ) throws Exception
+            {
+                // Nothing cached to invalidate, so the changes do not need to be looked at
+                return isEmpty() ? null : changes( data );
+            }
+
+            public void afterCommit( TransactionData data, Changes changes )
+            {
+                invalidate( changes );
+            }
+
+            public void afterRollback( TransactionData data, Changes changes )
+            {
+            }
+        };
+        graphDb.registerTransactionEventHandler( handler );
+    }
+
+    /**
+     * Gets the results of an aggregation from the cache, or calculates and caches them.
+     *
+     * @param description    How to group the paths.
+     * @param traversal      Describes the paths to aggregate.
+     * @param startNode      The node to start the traversal from.
+     * @param aggregateSpecs The aggregates to calculate.
+     * @return One row per group, holding the result of every aggregate. The map can
+     *         not be changed, since it is shared with other callers.
+     */
+    public Map<Key, AggregateRow> aggregate( GroupingDescription description, TraversalDescription traversal,
+                                             Node startNode, AggregateSpec<?>... aggregateSpecs )
+    {
+        CacheKey key = new CacheKey( description, traversal, startNode.getId(), aggregateSpecs );
+        long startGeneration;
+        synchronized ( this )
+        {
+            CacheEntry entry = entries.get( key );
+            if ( entry != null && isExpired( entry ) )
+            {
+                entries.remove( key );
+                evictions++;
+                entry = null;
+            }
+            if ( entry != null )
+            {
+                hits++;
+                return entry.results;
+            }
+            misses++;
+            startGeneration = generation;
+        }
+
+        CacheEntry entry = calculate( description, traversal, startNode, aggregateSpecs );
+        synchronized ( this )
+        {
+            // A transaction committed while calculating may have changed the paths
+            if ( generation == startGeneration )
+            {
+                entries.put( key, entry );
+            }
+        }
+        return entry.results;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return How many results were thrown away because the cache was full or they
+     *         had lived too long.
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return How many results were thrown away because a transaction touched them.
+     */
+    public synchronized long getInvalidations()
+    {
+        return invalidations;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        generation++;
+    }
+
+    /**
+     * Stops following changes to the graph and empties the cache.
+     */
+    public void close()
+    {
+        graphDb.unregisterTransactionEventHandler( handler );
+        clear();
+    }
+
+    private boolean isExpired( CacheEntry entry )
+    {
+        return timeToLiveNanos > 0 && System.nanoTime() - entry.created > timeToLiveNanos;
+    }
+
+    private static CacheEntry calculate( GroupingDescription description, TraversalDescription traversal,
+                                         Node startNode, AggregateSpec<?>[] aggregateSpecs )
+    {
+        long created = System.nanoTime();
+        Set<Long> nodes = new HashSet<Long>();
+        Set<String> relationshipTypes = new HashSet<String>();
+        nodes.add( startNode.getId() );
+
+        GroupedAggregates aggregates = new GroupedAggregates( description, new AggregatePlan( aggregateSpecs ) );
+        PathAccess pathAccess = new PathAccess( new PropertyMemo() );
+        for ( Path path : traversal.traverse( startNode ) )
+        {
+            for ( Node node : path.nodes() )
+            {
+                nodes.add( node.getId() );
+            }
+            for ( Relationship relationship : path.relationships() )
+            {
+                relationshipTypes.add( relationship.getType().name() );
+            }
+            aggregates.accumulate( pathAccess.reset( path ) );
+        }
+        return new CacheEntry( Collections.unmodifiableMap( aggregates.results() ), created,
+                nodes, relationshipTypes );
+    }
+
+    /**
+     * Finds what a transaction touches, before it is committed, while deleted
+     * relationships can still be looked at.
+     */
+    private static Changes changes( TransactionData data )
+    {
+        Changes changes = new Changes();
+        try
+        {
+            for ( Node node : data.createdNodes() )
+            {
+                changes.nodes.add( node.getId() );
+            }
+            for ( Node node : data.deletedNodes() )
+            {
+                changes.nodes.add( node.getId() );
+            }
+            addNodes( data.assignedNodeProperties(), changes );
+            addNodes( data.removedNodeProperties(), changes );
+            addRelationships( data.createdRelationships(), changes );
+            addRelationships( data.deletedRelationships(), changes );
+            addRelationships( relationshipsOf( data.assignedRelationshipProperties() ), changes );
+            addRelationships( relationshipsOf( data.removedRelationshipProperties() ), changes );
+        }
+        catch ( NotFoundException e )
+        {
+            // Can not tell what changed, so everything did
+            changes.nodes = null;
+            changes.relationshipTypes = null;
+        }
+        return changes;
+    }
+
+    private static void addNodes( Iterable<PropertyEntry<Node>> entries, Changes changes )
+    {
+        for ( PropertyEntry<Node> entry : entries )
+        {
+            changes.nodes.add( entry.entity().getId() );
+        }
+    }
+
+    private static void addRelationships( Iterable<Relationship> relationships, Changes changes )
+    {
+        for ( Relationship relationship : relationships )
+        {
+            changes.relationshipTypes.add( relationship.getType().name() );
+            changes.nodes.add( relationship.getStartNode().getId() );
+            changes.nodes.add( relationship.getEndNode().getId() );
+        }
+    }
+
+    private static Set<Relationship> relationshipsOf(
+            Iterable<PropertyEntry<Relationship>> entries )
+    {
+        Set<Relationship> relationships = new HashSet<Relationship>();
+        for ( PropertyEntry<Relationship> entry : entries )
+        {
+            relationships.add( entry.entity() );
+        }
+        return relationships;
+    }
+
+    private synchronized boolean isEmpty()
+    {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @param changes What the transaction touched, or null if nothing was cached before
+     *                it committed. Results cached since then may have missed the changes,
+     *                so they are all dropped.
+     */
+    private synchronized void invalidate( Changes changes )
+    {
+        if ( changes == null || changes.nodes == null )
+        {
+            invalidations += entries.size();
+            clear();
+            return;
+        }
+        if ( changes.nodes.isEmpty() && changes.relationshipTypes.isEmpty() )
+        {
+            return;
+        }
+
+        generation++;
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        while ( iterator.hasNext() )
+        {
+            CacheEntry entry = iterator.next();
+            if ( !Collections.disjoint( entry.nodes, changes.nodes ) ||
+                    !Collections.disjoint( entry.relationshipTypes, changes.relationshipTypes ) )
+            {
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+}
@@ -20,28 +20,91 @@
 
 package org.neo4j.laboratory.aggregation;
 
-import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.traversal.TraversalDescription;
 import org.neo4j.graphdb.traversal.Traverser;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateColumn;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateFunctionFactory;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateNodeFunctionFactory;
+import org.neo4j.laboratory.aggregation.aggregates.ValueDictionary;
 import org.neo4j.laboratory.aggregation.keymakers.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class GroupingDescription
 {
     final private Map<String, KeyMaker> keyMakers;
+    final private KeySchema keySchema;
+    final private KeyMaker[] keyMakerArray;
+    final private EncodedKeyMaker[] encodedKeyMakers;
+    final private PruningKeyMaker[] pruningKeyMakers;
+    final private GroupingSets groupingSets;
 
     public GroupingDescription()
     {
-        keyMakers = new HashMap<String, KeyMaker>();
+        this( new LinkedHashMap<String, KeyMaker>(), null );
     }
 
-    private GroupingDescription( Map<String, KeyMaker> keyMakers,
+    private GroupingDescription( Map<String, KeyMaker> keyMakers, GroupingSets groupingSets,
                                  String keyName, KeyMaker newKeyMaker )
     {
-        this.keyMakers = new HashMap<String, KeyMaker>( keyMakers );
-        this.keyMakers.put( keyName, newKeyMaker );
+        this( withKeyMaker( keyMakers, keyName, newKeyMaker ), groupingSets );
+    }
+
+    private GroupingDescription( Map<String, KeyMaker> keyMakers, GroupingSets groupingSets )
+    {
+        this.keyMakers = keyMakers;
+        this.groupingSets = groupingSets;
+        this.keySchema = new KeySchema( keyMakers.keySet().toArray( new String[keyMakers.size()] ) );
+        this.keyMakerArray = keyMakers.values().toArray( new KeyMaker[keyMakers.size()] );
+        this.encodedKeyMakers = onlyEncodedKeyMakers( keyMakerArray );
+        this.pruningKeyMakers = pruningKeyMakers( keyMakerArray );
+    }
+
+    private static EncodedKeyMaker[] onlyEncodedKeyMakers( KeyMaker[] keyMakers )
+    {
+        if ( keyMakers.length == 0 )
+        {
+            return null;
+        }
+
+        EncodedKeyMaker[] result = new EncodedKeyMaker[keyMakers.length];
+        for ( int i = 0; i < keyMakers.length; i++ )
+        {
+            if ( !( keyMakers[i] instanceof EncodedKeyMaker ) )
+            {
+                return null;
+            }
+            result[i] = (EncodedKeyMaker)keyMakers[i];
+        }
+        return result;
+    }
+
+    private static PruningKeyMaker[] pruningKeyMakers( KeyMaker[] keyMakers )
+    {
+        List<PruningKeyMaker> result = new ArrayList<PruningKeyMaker>();
+        for ( KeyMaker keyMaker : keyMakers )
+        {
+            if ( keyMaker instanceof PruningKeyMaker )
+            {
+                result.add( (PruningKeyMaker)keyMaker );
+            }
+        }
+        return result.toArray( new PruningKeyMaker[result.size()] );
+    }
+
+    private static Map<String, KeyMaker> withKeyMaker( Map<String, KeyMaker> keyMakers,
+                                                      String keyName, KeyMaker newKeyMaker )
+    {
+        Map<String, KeyMaker> result = new LinkedHashMap<String, KeyMaker>( keyMakers );
+        result.put( keyName, newKeyMaker );
+        return result;
     }
 
     /**
@@ -57,7 +120,21 @@ public class GroupingDescription
      */
     public GroupingDescription groupByNode( int offset, String keyName )
     {
-        return new GroupingDescription( keyMakers, keyName, new NodeKeyMaker( offset ) );
+        return new GroupingDescription( keyMakers, groupingSets, keyName, new NodeKeyMaker( offset ) );
+    }
+
+    /**
+     * Groups by the id of a node. This is the same grouping as groupByNode, but only
+     * the node id is kept in the key, and a grouping that only uses node ids is
+     * done with primitive long keys. Use Key.getNode to get the node back.
+     *
+     * @param offset  Points out the grouping node, the same way as for groupByNode.
+     * @param keyName The name to use to refer to this grouping.
+     * @return An aggregation description that contains this grouping.
+     */
+    public GroupingDescription groupByNodeId( int offset, String keyName )
+    {
+        return new GroupingDescription( keyMakers, groupingSets, keyName, new NodeIdKeyMaker( offset ) );
     }
 
     /**
@@ -74,7 +151,22 @@ public class GroupingDescription
     public GroupingDescription groupByNodeProperty( int offset,
                                                     String property )
     {
-        return new GroupingDescription( keyMakers, property, new NodePropertyKeyMaker( offset, property ) );
+        return new GroupingDescription( keyMakers, groupingSets, property, new NodePropertyKeyMaker( offset, property ) );
+    }
+
+    /**
+     * Groups by the property of a node, with a policy for paths where the node does
+     * not have the property.
+     *
+     * @param offset    Points out the node, the same way as for groupByNode.
+     * @param property  In the node, use this property as the grouping value.
+     * @param ifMissing What to do with paths where the property is missing.
+     * @return An aggregation description that contains this grouping.
+     */
+    public GroupingDescription groupByNodeProperty( int offset, String property, MissingPolicy ifMissing )
+    {
+        return new GroupingDescription( keyMakers, groupingSets, property,
+                new NodePropertyKeyMaker( offset, property, ifMissing ) );
     }
 
     /**
@@ -87,7 +179,23 @@ public class GroupingDescription
     public GroupingDescription groupByRelationProperty(
             RelationshipType relationshipType, String property )
     {
-        return new GroupingDescription( keyMakers, property, new RelationPropertyKeyMaker( relationshipType, property ) );
+        return new GroupingDescription( keyMakers, groupingSets, property, new RelationPropertyKeyMaker( relationshipType, property ) );
+    }
+
+    /**
+     * Groups by the property in a relationship, with a policy for paths where there
+     * is no relationship of the type, or it does not have the property.
+     *
+     * @param relationshipType Use the first relation of this type, starting from the beginning.
+     * @param property         On the relationship, use this property to group by
+     * @param ifMissing        What to do with paths where the relationship or property is missing.
+     * @return An aggregation description that contains this grouping.
+     */
+    public GroupingDescription groupByRelationProperty(
+            RelationshipType relationshipType, String property, MissingPolicy ifMissing )
+    {
+        return new GroupingDescription( keyMakers, groupingSets, property,
+                new RelationPropertyKeyMaker( relationshipType, property, ifMissing ) );
     }
 
     /**
@@ -101,7 +209,7 @@ public class GroupingDescription
     public GroupingDescription groupByRelationEndNode(
             RelationshipType relationshipType, String keyName )
     {
-        return new GroupingDescription( keyMakers, keyName, new RelationShipEndNodeKeyMaker( relationshipType ) );
+        return new GroupingDescription( keyMakers, groupingSets, keyName, new RelationShipEndNodeKeyMaker( relationshipType ) );
     }
 
 
@@ -116,7 +224,86 @@ public class GroupingDescription
     public GroupingDescription groupByRelationStartNode(
             RelationshipType relationshipType, String keyName )
     {
-        return new GroupingDescription( keyMakers, keyName, new RelationShipStartNodeKeyMaker( relationshipType ) );
+        return new GroupingDescription( keyMakers, groupingSets, keyName, new RelationShipStartNodeKeyMaker( relationshipType ) );
+    }
+
+    /**
+     * Groups by the end node of the first relationship of a type, with a policy for
+     * paths without a relationship of the type.
+     *
+     * @param relationshipType This is the relationship type to find
+     * @param keyName          The name of the key
+     * @param ifMissing        What to do with paths without the relationship.
+     * @return An aggregation description that contains this grouping.
+     */
+    public GroupingDescription groupByRelationEndNode(
+            RelationshipType relationshipType, String keyName, MissingPolicy ifMissing )
+    {
+        return new GroupingDescription( keyMakers, groupingSets, keyName,
+                new RelationShipEndNodeKeyMaker( relationshipType, ifMissing ) );
+    }
+
+    /**
+     * Groups by the start node of the first relationship of a type, with a policy for
+     * paths without a relationship of the type.
+     *
+     * @param relationshipType This is the relationship type to find
+     * @param keyName          The name of the key
+     * @param ifMissing        What to do with paths without the relationship.
+     * @return An aggregation description that contains this grouping.
+     */
+    public GroupingDescription groupByRelationStartNode(
+            RelationshipType relationshipType, String keyName, MissingPolicy ifMissing )
+    {
+        return new GroupingDescription( keyMakers, groupingSets, keyName,
+                new RelationShipStartNodeKeyMaker( relationshipType, ifMissing ) );
+    }
+
+    /**
+     * Also gives the results of rolling up the groupings declared so far, from the
+     * right, like ROLLUP in SQL: grouping by (a, b, c) also gives (a, b), (a) and the
+     * grand total. The paths are still only grouped once, by every name, and the
+     * coarser results are made from the finer ones. Groupings declared after this
+     * are grouped by at every level. The rolled up names of a result can be found
+     * with Key.getRolledUpNames.
+     *
+     * @return An aggregation description that contains these grouping sets,
+     *         instead of any given before.
+     */
+    public GroupingDescription rollup()
+    {
+        return new GroupingDescription( keyMakers, GroupingSets.rollup( keySchemaNames() ) );
+    }
+
+    /**
+     * Also gives the results of every combination of the groupings declared so far,
+     * like CUBE in SQL. See rollup.
+     *
+     * @return An aggregation description that contains these grouping sets,
+     *         instead of any given before.
+     */
+    public GroupingDescription cube()
+    {
+        return new GroupingDescription( keyMakers, GroupingSets.cube( keySchemaNames() ) );
+    }
+
+    /**
+     * Gives the results of the given combinations of the groupings declared so far,
+     * like GROUPING SETS in SQL. Only the given combinations are in the results, so
+     * include one with every name to also get the finest groups. See rollup.
+     *
+     * @param sets The names to group by in each combination.
+     * @return An aggregation description that contains these grouping sets,
+     *         instead of any given before.
+     */
+    public GroupingDescription groupingSets( String[]... sets )
+    {
+        return new GroupingDescription( keyMakers, GroupingSets.of( keySchemaNames(), sets ) );
+    }
+
+    private String[] keySchemaNames()
+    {
+        return keyMakers.keySet().toArray( new String[keyMakers.size()] );
     }
 
     /**
@@ -130,15 +317,227 @@ public class GroupingDescription
         return new Grouping( this, traverser );
     }
 
-    Key getGroupingKey( Path path )
+    /**
+     * Declares an aggregate over nodes, to be calculated while the paths are traversed.
+     * No paths are kept in memory, only the running aggregate for every group.
+     *
+     * @param offset          Points out the node to aggregate, the same way as for groupByNode.
+     * @param functionFactory The aggregate function to use.
+     * @return A streaming aggregation, that can be run with aggregateFrom.
+     */
+    public <T> StreamingAggregation<T> aggregateNode( int offset,
+                                                      AggregateNodeFunctionFactory<T> functionFactory )
+    {
+        return StreamingAggregation.single( this, AggregateSpec.node( offset, functionFactory ) );
+    }
+
+    /**
+     * Declares an aggregate over a node property, to be calculated while the paths are
+     * traversed. No paths are kept in memory, only the running aggregate for every group.
+     *
+     * @param offset          Points out the node to aggregate, the same way as for groupByNode.
+     * @param key             The property on the node to aggregate.
+     * @param functionFactory The aggregate function to use.
+     * @return A streaming aggregation, that can be run with aggregateFrom.
+     */
+    public <T> StreamingAggregation<T> aggregateNodeProperty( int offset, String key,
+                                                              AggregateFunctionFactory<T> functionFactory )
+    {
+        return StreamingAggregation.single( this, AggregateSpec.nodeProperty( offset, key, functionFactory ) );
+    }
+
+    /**
+     * Declares several aggregates, to be calculated in one go while the paths are
+     * traversed. Every node and property is read once per path, no matter how many
+     * of the aggregates use it.
+     *
+     * @param aggregateSpecs The aggregates to calculate.
+     * @return A streaming aggregation that gives one row per group.
+     */
+    public StreamingAggregation<AggregateRow> aggregate( AggregateSpec<?>... aggregateSpecs )
+    {
+        return StreamingAggregation.rows( this, aggregateSpecs );
+    }
+
+    /**
+     * Calculates aggregates once and keeps them up to date as transactions are
+     * committed, see MaterializedAggregation. The traversal is run again when
+     * relationships are created, so it is given as a description and a start node.
+     *
+     * @param graphDb        The database to follow changes in.
+     * @param traversal      Describes the paths to aggregate.
+     * @param startNode      The node to start the traversal from.
+     * @param aggregateSpecs The aggregates to keep.
+     * @return The aggregation. Close it when it is no longer needed.
+     */
+    public MaterializedAggregation materialize( GraphDatabaseService graphDb, TraversalDescription traversal,
+                                                Node startNode, AggregateSpec<?>... aggregateSpecs )
+    {
+        return new MaterializedAggregation( this, graphDb, traversal, startNode, aggregateSpecs );
+    }
+
+    /**
+     * Two descriptions are equal when they group by the same things under the same
+     * names, so they can be used as keys, for instance in a GroupingCache.
+     */
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( !( o instanceof GroupingDescription ) )
+        {
+            return false;
+        }
+        GroupingDescription other = (GroupingDescription)o;
+        return other.keyMakers.equals( keyMakers ) &&
+                ( groupingSets == null ? other.groupingSets == null : groupingSets.equals( other.groupingSets ) );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * keyMakers.hashCode() + ( groupingSets == null ? 0 : groupingSets.hashCode() );
+    }
+
+    /**
+     * Describes how paths will be grouped, without grouping any, like EXPLAIN does
+     * for a query. See GroupingProfile for what a run actually did.
+     *
+     * @return A summary of the groupings, one per line.
+     */
+    public String explain()
+    {
+        StringBuilder explain = new StringBuilder( "EXPLAIN\n" );
+        for ( Map.Entry<String, KeyMaker> entry : keyMakers.entrySet() )
+        {
+            explain.append( "  group by " ).append( entry.getKey() ).append( ": " ).
+                    append( entry.getValue().getClass().getSimpleName() ).append( '\n' );
+        }
+        explain.append( groupsByCodesOnly() ? "  keys as long codes\n" : "  keys as Key objects\n" );
+        explain.append( "  " ).append( pruningKeyMakers.length ).append( " of " ).
+                append( keyMakerArray.length ).append( " groupings can prune a traversal\n" );
+        if ( groupingSets != null )
+        {
+            explain.append( "  grouping sets " ).append( groupingSets ).append( '\n' );
+        }
+        return explain.toString();
+    }
+
+    boolean hasGroupingSets()
+    {
+        return groupingSets != null;
+    }
+
+    /**
+     * Gives the results of the groups, and of the grouping sets if there are any.
+     */
+    Map<Key, AggregateRow> results( GroupTable groups, AggregatePlan plan, AggregateColumn<?>[] columns )
+    {
+        if ( groupingSets != null )
+        {
+            return groupingSets.results( keySchema, groups, plan, columns );
+        }
+
+        Map<Key, AggregateRow> results = new HashMap<Key, AggregateRow>( groups.size() * 2 );
+        for ( int group = 0; group < groups.size(); group++ )
+        {
+            results.put( groups.keyAt( group ), plan.result( columns, group ) );
+        }
+        return results;
+    }
+
+    /**
+     * @return True if every grouping is by node id or by property, so keys can be
+     *         kept as longs, see EncodedKeyMaker.
+     */
+    boolean groupsByCodesOnly()
+    {
+        return encodedKeyMakers != null;
+    }
+
+    int getKeyWidth()
+    {
+        return keyMakerArray.length;
+    }
+
+    /**
+     * Reads the key codes of a path into the given array, encoding property values
+     * with the dictionary. Only usable when groupsByCodesOnly is true.
+     *
+     * @return False if the path is to be skipped, see MissingPolicy.
+     */
+    boolean getGroupingCodes( PathAccess path, long[] codes, ValueDictionary dictionary )
+    {
+        for ( int i = 0; i < encodedKeyMakers.length; i++ )
+        {
+            codes[i] = encodedKeyMakers[i].getKeyCode( path, dictionary );
+            if ( codes[i] == EncodedKeyMaker.SKIPPED )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes key codes from one dictionary again with another.
+     */
+    void recode( long[] codes, ValueDictionary from, ValueDictionary to )
+    {
+        for ( int i = 0; i < encodedKeyMakers.length; i++ )
+        {
+            EncodedKeyMaker keyMaker = encodedKeyMakers[i];
+            codes[i] = keyMaker.encode( keyMaker.decode( codes[i], from ), to );
+        }
+    }
+
+    Key getGroupingKey( long[] codes, ValueDictionary dictionary )
+    {
+        Object[] values = new Object[codes.length];
+        for ( int i = 0; i < codes.length; i++ )
+        {
+            values[i] = encodedKeyMakers[i].decode( codes[i], dictionary );
+        }
+        return new Key( keySchema, values );
+    }
+
+    /**
+     * @param values The values of a key, in the order the groupings were declared.
+     */
+    Key getGroupingKey( Object[] values )
+    {
+        return new Key( keySchema, values );
+    }
+
+    /**
+     * @return True if neither the path nor any path that continues it can be given a
+     *         key, see PruningKeyMaker.
+     */
+    boolean cannotMakeKeyFrom( PathAccess prefix )
+    {
+        for ( PruningKeyMaker keyMaker : pruningKeyMakers )
+        {
+            if ( keyMaker.cannotMakeKeyFrom( prefix ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The key of the path, or null if the path is to be skipped, see MissingPolicy.
+     */
+    Key getGroupingKey( PathAccess path )
     {
-        Key key = new Key();
-        for ( String keyName : keyMakers.keySet() )
+        Object[] values = new Object[keyMakerArray.length];
+        for ( int i = 0; i < keyMakerArray.length; i++ )
         {
-            KeyMaker keyMaker = keyMakers.get( keyName );
-            Object keyValue = keyMaker.getKeyValue( path );
-            key.addKey( keyName, keyValue );
+            values[i] = keyMakerArray[i].getKeyValue( path );
+            if ( values[i] == MissingPolicy.SKIPPED )
+            {
+                return null;
+            }
         }
-        return key;
+        return new Key( keySchema, values );
     }
 }
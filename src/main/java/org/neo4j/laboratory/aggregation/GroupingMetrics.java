@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adds up the profiles of all groupings and aggregations run in this JVM, and
+ * makes the totals available over JMX once registered.
+ *
+ * Profiling is off until enabled. While it is off, runs only count what they know
+ * anyway, like the number of paths and groups, and read no clocks, so the cost is
+ * a check of one flag per run.
+ */
+public final class GroupingMetrics implements GroupingMetricsMBean
+{
+    public static final String OBJECT_NAME = "org.neo4j.laboratory.aggregation:type=GroupingMetrics";
+
+    private static final GroupingMetrics INSTANCE = new GroupingMetrics();
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    private volatile boolean enabled;
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong pathsConsumed = new AtomicLong();
+    private final AtomicLong pathsSkipped = new AtomicLong();
+    private final AtomicLong groups = new AtomicLong();
+    private final AtomicLong traversalNanos = new AtomicLong();
+    private final AtomicLong keyMakingNanos = new AtomicLong();
+    private final AtomicLong accumulationNanos = new AtomicLong();
+    private final AtomicLong propertyReads = new AtomicLong();
+    private final AtomicLong propertyReadsFromMemo = new AtomicLong();
+    private final AtomicLong peakEstimatedBytes = new AtomicLong();
+
+    private GroupingMetrics()
+    {
+    }
+
+    public static GroupingMetrics instance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, under OBJECT_NAME.
+     * Registering more than once does nothing.
+     */
+    public static void register()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            ObjectName name = new ObjectName( OBJECT_NAME );
+            if ( !server.isRegistered( name ) )
+            {
+                server.registerMBean( INSTANCE, name );
+            }
+        }
+        catch ( JMException e )
+        {
+            throw new IllegalStateException( "Could not register " + OBJECT_NAME, e );
+        }
+    }
+
+    /**
+     * Starts the profile of a run, timed if profiling is enabled.
+     */
+    GroupingProfile start( String operation )
+    {
+        return new GroupingProfile( operation, enabled );
+    }
+
+    /**
+     * Adds a finished run to the totals, if profiling is enabled.
+     */
+    void record( GroupingProfile profile )
+    {
+        if ( !profile.isTimed() )
+        {
+            return;
+        }
+        runs.incrementAndGet();
+        pathsConsumed.addAndGet( profile.getPathsConsumed() );
+        pathsSkipped.addAndGet( profile.getPathsSkipped() );
+        groups.addAndGet( profile.getGroups() );
+        traversalNanos.addAndGet( profile.getTraversalNanos() );
+        keyMakingNanos.addAndGet( profile.getKeyMakingNanos() );
+        accumulationNanos.addAndGet( profile.getAccumulationNanos() );
+        propertyReads.addAndGet( profile.getPropertyReads() );
+        propertyReadsFromMemo.addAndGet( profile.getPropertyReadsFromMemo() );
+        long bytes = profile.getEstimatedBytes();
+        for ( long peak = peakEstimatedBytes.get(); bytes > peak; peak = peakEstimatedBytes.get() )
+        {
+            if ( peakEstimatedBytes.compareAndSet( peak, bytes ) )
+            {
+                break;
+            }
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public void setEnabled( boolean enabled )
+    {
+        this.enabled = enabled;
+    }
+
+    public long getRuns()
+    {
+        return runs.get();
+    }
+
+    public long getPathsConsumed()
+    {
+        return pathsConsumed.get();
+    }
+
+    public long getPathsSkipped()
+    {
+        return pathsSkipped.get();
+    }
+
+    public long getGroups()
+    {
+        return groups.get();
+    }
+
+    public long getTraversalMillis()
+    {
+        return traversalNanos.get() / NANOS_PER_MILLI;
+    }
+
+    public long getKeyMakingMillis()
+    {
+        return keyMakingNanos.get() / NANOS_PER_MILLI;
+    }
+
+    public long getAccumulationMillis()
+    {
+        return accumulationNanos.get() / NANOS_PER_MILLI;
+    }
+
+    public long getPropertyReads()
+    {
+        return propertyReads.get();
+    }
+
+    public long getPropertyReadsFromMemo()
+    {
+        return propertyReadsFromMemo.get();
+    }
+
+    public long getPeakEstimatedBytes()
+    {
+        return peakEstimatedBytes.get();
+    }
+
+    public void reset()
+    {
+        runs.set( 0 );
+        pathsConsumed.set( 0 );
+        pathsSkipped.set( 0 );
+        groups.set( 0 );
+        traversalNanos.set( 0 );
+        keyMakingNanos.set( 0 );
+        accumulationNanos.set( 0 );
+        propertyReads.set( 0 );
+        propertyReadsFromMemo.set( 0 );
+        peakEstimatedBytes.set( 0 );
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import java.util.Locale;
+
+/**
+ * What one run over the paths did: how many paths it went through, how many groups
+ * it ended up with, where the time went and how much memory it roughly held on to.
+ * Print it for a PROFILE-like summary of the run.
+ *
+ * The time is only measured when GroupingMetrics is enabled, since that reads the
+ * clock a few times per path. The counts are always there.
+ */
+public final class GroupingProfile
+{
+    private final String operation;
+    private final boolean timed;
+    private long pathsConsumed;
+    private long pathsSkipped;
+    private long groups;
+    private long traversalNanos;
+    private long keyMakingNanos;
+    private long accumulationNanos;
+    private long propertyReads;
+    private long propertyReadsFromMemo;
+    private long estimatedBytes;
+
+    GroupingProfile( String operation, boolean timed )
+    {
+        this.operation = operation;
+        this.timed = timed;
+    }
+
+    /**
+     * @return The time to measure the first stage from, or 0 if not timed.
+     */
+    long clock()
+    {
+        return timed ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Adds the time since the given clock to getting paths from the traverser.
+     *
+     * @return The time to measure the next stage from.
+     */
+    long traversed( long since )
+    {
+        if ( !timed )
+        {
+            return 0;
+        }
+        long now = System.nanoTime();
+        traversalNanos += now - since;
+        return now;
+    }
+
+    long keyMade( long since )
+    {
+        if ( !timed )
+        {
+            return 0;
+        }
+        long now = System.nanoTime();
+        keyMakingNanos += now - since;
+        return now;
+    }
+
+    long accumulated( long since )
+    {
+        if ( !timed )
+        {
+            return 0;
+        }
+        long now = System.nanoTime();
+        accumulationNanos += now - since;
+        return now;
+    }
+
+    void pathConsumed()
+    {
+        pathsConsumed++;
+    }
+
+    void pathSkipped()
+    {
+        pathsSkipped++;
+    }
+
+    /**
+     * Ends the run, and hands it to GroupingMetrics.
+     */
+    GroupingProfile finish( long groups, PropertyMemo memo, long estimatedBytes )
+    {
+        this.groups = groups;
+        this.propertyReads = memo.getHits() + memo.getMisses();
+        this.propertyReadsFromMemo = memo.getHits();
+        this.estimatedBytes = estimatedBytes;
+        GroupingMetrics.instance().record( this );
+        return this;
+    }
+
+    /**
+     * @return What was run: group, aggregate or top.
+     */
+    public String getOperation()
+    {
+        return operation;
+    }
+
+    /**
+     * @return True if the time of the stages was measured.
+     */
+    public boolean isTimed()
+    {
+        return timed;
+    }
+
+    public long getPathsConsumed()
+    {
+        return pathsConsumed;
+    }
+
+    /**
+     * @return The paths left out because of a MissingPolicy.
+     */
+    public long getPathsSkipped()
+    {
+        return pathsSkipped;
+    }
+
+    public long getGroups()
+    {
+        return groups;
+    }
+
+    public long getTraversalNanos()
+    {
+        return traversalNanos;
+    }
+
+    /**
+     * @return The time spent making keys and finding their groups.
+     */
+    public long getKeyMakingNanos()
+    {
+        return keyMakingNanos;
+    }
+
+    public long getAccumulationNanos()
+    {
+        return accumulationNanos;
+    }
+
+    /**
+     * @return The node property reads, including the ones answered by the PropertyMemo.
+     */
+    public long getPropertyReads()
+    {
+        return propertyReads;
+    }
+
+    public long getPropertyReadsFromMemo()
+    {
+        return propertyReadsFromMemo;
+    }
+
+    /**
+     * @return A rough estimate of the bytes held by the paths, group tables and
+     *         aggregate columns at the end of the run, which is when they are largest.
+     */
+    public long getEstimatedBytes()
+    {
+        return estimatedBytes;
+    }
+
+    /**
+     * @return A summary of the run, one figure per line.
+     */
+    public String summary()
+    {
+        StringBuilder summary = new StringBuilder( "PROFILE " ).append( operation ).append( '\n' );
+        line( summary, "paths consumed", String.valueOf( pathsConsumed ) );
+        line( summary, "paths skipped", String.valueOf( pathsSkipped ) );
+        line( summary, "groups", String.valueOf( groups ) );
+        line( summary, "traversal", millis( traversalNanos ) );
+        line( summary, "key making", millis( keyMakingNanos ) );
+        line( summary, "accumulation", millis( accumulationNanos ) );
+        line( summary, "property reads", propertyReads + " (" + propertyReadsFromMemo + " from memo)" );
+        line( summary, "estimated memory", estimatedBytes + " bytes" );
+        return summary.toString();
+    }
+
+    private String millis( long nanos )
+    {
+        return timed ? String.format( Locale.ROOT, "%.3f ms", nanos / 1e6 ) : "not timed";
+    }
+
+    private static void line( StringBuilder summary, String name, String value )
+    {
+        summary.append( String.format( Locale.ROOT, "  %-18s%s\n", name, value ) );
+    }
+
+    @Override
+    public String toString()
+    {
+        return summary();
+    }
+}
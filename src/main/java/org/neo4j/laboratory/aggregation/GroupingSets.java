@@ -0,0 +1,329 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.laboratory.aggregation.aggregates.AggregateColumn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The grouping sets of a GroupingDescription: the levels, besides grouping by every
+ * name, that results are also wanted for. Each level groups by some of the names
+ * the sets range over, and rolls the others up. Names that the sets do not range
+ * over are grouped by at every level.
+ *
+ * Paths are only grouped by every name. The groups of a coarser level are made by
+ * merging the accumulators of the groups of a finer level, the smallest one already
+ * made that groups by all the names of the coarser one, so no path is read twice.
+ */
+final class GroupingSets
+{
+    private final Set<String> rolledNames;
+    private final List<Set<String>> sets;
+
+    private GroupingSets( Set<String> rolledNames, List<Set<String>> sets )
+    {
+        this.rolledNames = rolledNames;
+        this.sets = sets;
+    }
+
+    /**
+     * (a, b, c), (a, b), (a) and ().
+     */
+    static GroupingSets rollup( String[] names )
+    {
+        List<Set<String>> sets = new ArrayList<Set<String>>();
+        for ( int size = names.length; size >= 0; size-- )
+        {
+            sets.add( new LinkedHashSet<String>( Arrays.asList( names ).subList( 0, size ) ) );
+        }
+        return new GroupingSets( new LinkedHashSet<String>( Arrays.asList( names ) ), sets );
+    }
+
+    /**
+     * Every subset of the names.
+     */
+    static GroupingSets cube( String[] names )
+    {
+        if ( names.length > 16 )
+        {
+            throw new IllegalArgumentException( "A cube over " + names.length + " groupings has too many levels" );
+        }
+        List<Set<String>> sets = new ArrayList<Set<String>>();
+        for ( int mask = ( 1 << names.length ) - 1; mask >= 0; mask-- )
+        {
+            Set<String> set = new LinkedHashSet<String>();
+            for ( int i = 0; i < names.length; i++ )
+            {
+                if ( ( mask & ( 1 << i ) ) != 0 )
+                {
+                    set.add( names[i] );
+                }
+            }
+            sets.add( set );
+        }
+        return new GroupingSets( new LinkedHashSet<String>( Arrays.asList( names ) ), sets );
+    }
+
+    static GroupingSets of( String[] names, String[][] groupingSets )
+    {
+        Set<String> known = new LinkedHashSet<String>( Arrays.asList( names ) );
+        List<Set<String>> sets = new ArrayList<Set<String>>();
+        for ( String[] groupingSet : groupingSets )
+        {
+            for ( String name : groupingSet )
+            {
+                if ( !known.contains( name ) )
+                {
+                    throw new IllegalArgumentException( "There is no grouping named " + name );
+                }
+            }
+            sets.add( new LinkedHashSet<String>( Arrays.asList( groupingSet ) ) );
+        }
+        return new GroupingSets( known, sets );
+    }
+
+    private static class Level
+    {
+        final int[] positions;
+        final KeySchema schema;
+        GroupTable groups;
+        AggregateColumn<?>[] columns;
+
+        Level( int[] positions, KeySchema schema )
+        {
+            this.positions = positions;
+            this.schema = schema;
+        }
+
+        boolean groupsByAllOf( Level other )
+        {
+            int i = 0;
+            for ( int position : other.positions )
+            {
+                while ( i < positions.length && positions[i] < position )
+                {
+                    i++;
+                }
+                if ( i == positions.length || positions[i] != position )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Makes the results of every level out of groups that group by every name.
+     *
+     * @param schema  The names of the keys of the groups.
+     * @param groups  The groups, grouped by every name.
+     * @param plan    The plan the columns were made by.
+     * @param columns The accumulators of the groups.
+     * @return The results of every level, keyed by the names grouped by at the level.
+     */
+    Map<Key, AggregateRow> results( KeySchema schema, GroupTable groups, AggregatePlan plan,
+                                    AggregateColumn<?>[] columns )
+    {
+        Level finest = new Level( allPositions( schema.size() ), schema );
+        finest.groups = groups;
+        finest.columns = columns;
+
+        List<Level> levels = new ArrayList<Level>();
+        levels.add( finest );
+        for ( Level level : levels( schema ) )
+        {
+            if ( level.positions.length == schema.size() )
+            {
+                continue;
+            }
+            Level source = finest;
+            for ( Level made : levels )
+            {
+                if ( made.groupsByAllOf( level ) && made.groups.size() < source.groups.size() )
+                {
+                    source = made;
+                }
+            }
+            rollUp( source, level, plan );
+            levels.add( level );
+        }
+
+        int size = 0;
+        for ( Level level : levels )
+        {
+            size += level.groups.size();
+        }
+        Map<Key, AggregateRow> results = new HashMap<Key, AggregateRow>( size * 2 );
+        for ( Level level : levels )
+        {
+            if ( level == finest && !includesFinest() )
+            {
+                continue;
+            }
+            for ( int group = 0; group < level.groups.size(); group++ )
+            {
+                results.put( level.groups.keyAt( group ), plan.result( level.columns, group ) );
+            }
+        }
+        return results;
+    }
+
+    private static void rollUp( Level source, Level level, AggregatePlan plan )
+    {
+        int[] sourcePositions = new int[level.positions.length];
+        for ( int i = 0; i < level.positions.length; i++ )
+        {
+            sourcePositions[i] = Arrays.binarySearch( source.positions, level.positions[i] );
+        }
+
+        KeyGroupTable groups = new KeyGroupTable();
+        AggregateColumn<?>[] columns = plan.newColumns();
+        for ( int sourceGroup = 0; sourceGroup < source.groups.size(); sourceGroup++ )
+        {
+            Key sourceKey = source.groups.keyAt( sourceGroup );
+            Object[] values = new Object[sourcePositions.length];
+            for ( int i = 0; i < sourcePositions.length; i++ )
+            {
+                values[i] = sourceKey.valueAt( sourcePositions[i] );
+            }
+
+            int groupCount = groups.size();
+            int group = groups.getOrAdd( new Key( level.schema, values ) );
+            if ( group == groupCount )
+            {
+                plan.addGroup( columns, group );
+            }
+            plan.merge( columns, group, source.columns, sourceGroup );
+        }
+        level.groups = groups;
+        level.columns = columns;
+    }
+
+    /**
+     * @return The levels of the sets, without duplicates, finest first.
+     */
+    private List<Level> levels( KeySchema schema )
+    {
+        List<Level> levels = new ArrayList<Level>();
+        for ( Set<String> set : sets )
+        {
+            List<String> names = new ArrayList<String>();
+            List<Integer> positions = new ArrayList<Integer>();
+            Set<String> rolledUp = new LinkedHashSet<String>();
+            for ( int position = 0; position < schema.size(); position++ )
+            {
+                String name = schema.getName( position );
+                if ( set.contains( name ) || !rolledNames.contains( name ) )
+                {
+                    names.add( name );
+                    positions.add( position );
+                }
+                else
+                {
+                    rolledUp.add( name );
+                }
+            }
+
+            int[] positionArray = new int[positions.size()];
+            for ( int i = 0; i < positionArray.length; i++ )
+            {
+                positionArray[i] = positions.get( i );
+            }
+            boolean seen = false;
+            for ( Level level : levels )
+            {
+                seen |= Arrays.equals( level.positions, positionArray );
+            }
+            if ( !seen )
+            {
+                levels.add( new Level( positionArray,
+                        new KeySchema( rolledUp, names.toArray( new String[names.size()] ) ) ) );
+            }
+        }
+
+        Collections.sort( levels, new Comparator<Level>()
+        {
+            public int compare( Level first, Level second )
+            {
+                return second.positions.length - first.positions.length;
+            }
+        } );
+        return levels;
+    }
+
+    private boolean includesFinest()
+    {
+        for ( Set<String> set : sets )
+        {
+            if ( set.containsAll( rolledNames ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] allPositions( int size )
+    {
+        int[] positions = new int[size];
+        for ( int i = 0; i < size; i++ )
+        {
+            positions[i] = i;
+        }
+        return positions;
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( !( o instanceof GroupingSets ) )
+        {
+            return false;
+        }
+        GroupingSets other = (GroupingSets)o;
+        return other.rolledNames.equals( rolledNames ) && other.sets.equals( sets );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * rolledNames.hashCode() + sets.hashCode();
+    }
+
+    /**
+     * @return The levels, like [[a, b], [a], []].
+     */
+    @Override
+    public String toString()
+    {
+        return sets.toString();
+    }
+}
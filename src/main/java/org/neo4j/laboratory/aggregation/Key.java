@@ -20,30 +20,97 @@
 
 package org.neo4j.laboratory.aggregation;
 
-import java.util.HashMap;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+import java.util.Arrays;
 import java.util.Set;
 
+/**
+ * The values a path was grouped by. The values are laid out by position against a
+ * KeySchema shared by all keys of a grouping, and the hash code is calculated once.
+ */
 public class Key
 {
-    private HashMap<String, Object> keys = new HashMap<String, Object>();
+    private KeySchema schema;
+    private Object[] values;
+    private int hash;
 
     public Key()
     {
+        this( KeySchema.EMPTY, new Object[0] );
     }
 
-    public void addKey( String keyName, Object key)
+    Key( KeySchema schema, Object[] values )
     {
-        keys.put( keyName, key );
+        this.schema = schema;
+        this.values = values;
+        this.hash = schema.hash( values );
+    }
+
+    public void addKey( String keyName, Object key )
+    {
+        int position = schema.positionOf( keyName );
+        if ( position == -1 )
+        {
+            schema = schema.with( keyName );
+            values = Arrays.copyOf( values, values.length + 1 );
+            position = values.length - 1;
+        }
+
+        values[position] = key;
+        hash = schema.hash( values );
     }
 
     public Object getKey( String key )
     {
-        return keys.get( key );
+        int position = schema.positionOf( key );
+        return position == -1 ? null : values[position];
+    }
+
+    /**
+     * Gets a node this key was grouped by. Groupings by node id only keep the id
+     * of the node, and the node is looked up in the database.
+     *
+     * @param key     The name of the grouping.
+     * @param graphDb The database to look the node up in.
+     * @return The node.
+     */
+    public Node getNode( String key, GraphDatabaseService graphDb )
+    {
+        Object value = getKey( key );
+        if ( value instanceof Node )
+        {
+            return (Node)value;
+        }
+        return graphDb.getNodeById( (Long)value );
+    }
+
+    int width()
+    {
+        return values.length;
+    }
+
+    Object valueAt( int position )
+    {
+        return values[position];
     }
 
     public Set<String> getKeyNames()
     {
-        return keys.keySet();
+        return schema.getNames();
+    }
+
+    /**
+     * Gets the names of the groupings that are rolled up in this key, when the
+     * grouping has grouping sets. The key has no values for them, it holds the
+     * results of all their values together.
+     *
+     * @return The rolled up names, empty if none are.
+     */
+    public Set<String> getRolledUpNames()
+    {
+        return schema.getRolledUp();
     }
 
     @Override
@@ -59,15 +126,26 @@ public class Key
         }
 
         Key key = (Key)o;
+        if ( hash != key.hash )
+        {
+            return false;
+        }
 
-        if ( !getKeyNames().equals( ( (Key)o ).getKeyNames() ) )
+        if ( schema == key.schema )
+        {
+            return Arrays.equals( values, key.values );
+        }
+
+        if ( !getKeyNames().equals( key.getKeyNames() ) )
         {
             return false;
         }
 
-        for ( String keyName : getKeyNames() )
+        for ( int i = 0; i < values.length; i++ )
         {
-            if ( !getKey( keyName ).equals( ( (Key)o ).getKey( keyName ) ) )
+            Object value = values[i];
+            Object otherValue = key.getKey( schema.getName( i ) );
+            if ( value == null ? otherValue != null : !value.equals( otherValue ) )
             {
                 return false;
             }
@@ -79,16 +157,6 @@ public class Key
     @Override
     public int hashCode()
     {
-        int result = 0;
-        for ( Object o : keys.values() )
-        {
-            result = 31 * result + o.hashCode();
-        }
-        for ( String keyName : keys.keySet() )
-        {
-            result = 31 * result + keyName.hashCode();
-        }
-
-        return result;
+        return hash;
     }
 }
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.Comparator;
+
+/**
+ * Orders the keys of a grouping, value by value in the order the groupings were
+ * declared. Comparable values are compared naturally, nodes and relationships by
+ * id, and anything else by its string form. Missing values come first.
+ */
+class KeyComparator implements Comparator<Key>
+{
+    static final KeyComparator INSTANCE = new KeyComparator();
+
+    public int compare( Key first, Key second )
+    {
+        int width = Math.min( first.width(), second.width() );
+        for ( int i = 0; i < width; i++ )
+        {
+            int result = compareValues( first.valueAt( i ), second.valueAt( i ) );
+            if ( result != 0 )
+            {
+                return result;
+            }
+        }
+        return first.width() - second.width();
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static int compareValues( Object first, Object second )
+    {
+        if ( first == second )
+        {
+            return 0;
+        }
+        if ( first == null )
+        {
+            return -1;
+        }
+        if ( second == null )
+        {
+            return 1;
+        }
+        if ( first instanceof Node && second instanceof Node )
+        {
+            return compareIds( ( (Node)first ).getId(), ( (Node)second ).getId() );
+        }
+        if ( first instanceof Relationship && second instanceof Relationship )
+        {
+            return compareIds( ( (Relationship)first ).getId(), ( (Relationship)second ).getId() );
+        }
+        if ( first instanceof Comparable && first.getClass() == second.getClass() )
+        {
+            return ( (Comparable<Object>)first ).compareTo( second );
+        }
+        return first.toString().compareTo( second.toString() );
+    }
+
+    private static int compareIds( long first, long second )
+    {
+        return first < second ? -1 : ( first == second ? 0 : 1 );
+    }
+}
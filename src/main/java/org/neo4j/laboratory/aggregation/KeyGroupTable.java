@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import java.util.Arrays;
+
+/**
+ * A group table for any kind of grouping, keyed by Key objects.
+ */
+class KeyGroupTable extends GroupTable
+{
+    private Key[] keys = new Key[INITIAL_CAPACITY];
+
+    int getOrAdd( Key key )
+    {
+        return getOrAdd( key, key.hashCode() );
+    }
+
+    int get( Key key )
+    {
+        return get( key, key.hashCode() );
+    }
+
+    Key keyAt( int group )
+    {
+        return keys[group];
+    }
+
+    int getOrAddFrom( GroupTable other, int otherGroup )
+    {
+        return getOrAdd( other.keyAt( otherGroup ) );
+    }
+
+    boolean matches( int group, Object key )
+    {
+        return keys[group] == key || keys[group].equals( key );
+    }
+
+    long estimatedKeyBytes()
+    {
+        return 8L * keys.length + (long)ESTIMATED_VALUE_BYTES * size();
+    }
+
+    void storeKey( int group, Object key )
+    {
+        if ( group == keys.length )
+        {
+            keys = Arrays.copyOf( keys, group * 2 );
+        }
+        keys[group] = (Key)key;
+    }
+}
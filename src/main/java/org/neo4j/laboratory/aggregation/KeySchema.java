@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The key names of a grouping, in the order their values are laid out in a Key.
+ * One schema is shared by all the keys a GroupingDescription makes.
+ */
+final class KeySchema
+{
+    static final KeySchema EMPTY = new KeySchema();
+
+    private final String[] names;
+    private final int[] nameHashes;
+    private final Map<String, Integer> positions;
+    private final Set<String> nameSet;
+    private final Set<String> rolledUp;
+
+    KeySchema( String... names )
+    {
+        this( Collections.<String>emptySet(), names );
+    }
+
+    /**
+     * @param rolledUp The names rolled up in keys of this schema, see GroupingSets.
+     * @param names    The names of the values of the keys.
+     */
+    KeySchema( Set<String> rolledUp, String... names )
+    {
+        this.names = names;
+        this.rolledUp = Collections.unmodifiableSet( rolledUp );
+        this.nameHashes = new int[names.length];
+        this.positions = new HashMap<String, Integer>( names.length * 2 );
+        for ( int i = 0; i < names.length; i++ )
+        {
+            nameHashes[i] = names[i].hashCode();
+            positions.put( names[i], i );
+        }
+        this.nameSet = Collections.unmodifiableSet( new LinkedHashSet<String>( Arrays.asList( names ) ) );
+    }
+
+    int size()
+    {
+        return names.length;
+    }
+
+    String getName( int position )
+    {
+        return names[position];
+    }
+
+    int positionOf( String name )
+    {
+        Integer position = positions.get( name );
+        return position == null ? -1 : position;
+    }
+
+    Set<String> getNames()
+    {
+        return nameSet;
+    }
+
+    Set<String> getRolledUp()
+    {
+        return rolledUp;
+    }
+
+    KeySchema with( String name )
+    {
+        String[] newNames = Arrays.copyOf( names, names.length + 1 );
+        newNames[names.length] = name;
+        return new KeySchema( rolledUp, newNames );
+    }
+
+    /**
+     * Hashes the values of a key. Every name/value pair is mixed on its own and the
+     * results are added, so keys with the same pairs in another order hash the same.
+     */
+    int hash( Object[] values )
+    {
+        int result = 0;
+        for ( int i = 0; i < values.length; i++ )
+        {
+            int valueHash = values[i] == null ? 0 : values[i].hashCode();
+            result += mix( 31 * nameHashes[i] + valueHash );
+        }
+        return result;
+    }
+
+    private static int mix( int h )
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.laboratory.aggregation.aggregates.ValueDictionary;
+
+import java.util.Arrays;
+
+/**
+ * A group table for groupings that only use node ids and properties. Property
+ * values are given codes by a dictionary of the table, and the ids and codes of all
+ * groups are kept next to each other in one long array, so looking up the group of
+ * a path neither allocates nor boxes anything, and only longs are compared. Key
+ * objects are only made when the keys are asked for.
+ */
+class LongGroupTable extends GroupTable
+{
+    private final GroupingDescription groupingDescription;
+    private final int width;
+    private final long[] ids;
+    private final ValueDictionary dictionary = new ValueDictionary();
+    private long[] keys;
+
+    LongGroupTable( GroupingDescription groupingDescription )
+    {
+        this.groupingDescription = groupingDescription;
+        this.width = groupingDescription.getKeyWidth();
+        this.ids = new long[width];
+        this.keys = new long[INITIAL_CAPACITY * width];
+    }
+
+    ValueDictionary dictionary()
+    {
+        return dictionary;
+    }
+
+    int getOrAdd( long[] key )
+    {
+        long h = 0;
+        for ( int i = 0; i < width; i++ )
+        {
+            h = ( h ^ key[i] ) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 32;
+        }
+        return getOrAdd( key, (int)h );
+    }
+
+    Key keyAt( int group )
+    {
+        System.arraycopy( keys, group * width, ids, 0, width );
+        return groupingDescription.getGroupingKey( ids, dictionary );
+    }
+
+    int getOrAddFrom( GroupTable other, int otherGroup )
+    {
+        LongGroupTable otherTable = (LongGroupTable)other;
+        System.arraycopy( otherTable.keys, otherGroup * width, ids, 0, width );
+        if ( otherTable.dictionary != dictionary )
+        {
+            groupingDescription.recode( ids, otherTable.dictionary, dictionary );
+        }
+        return getOrAdd( ids );
+    }
+
+    boolean matches( int group, Object key )
+    {
+        long[] ids = (long[])key;
+        int start = group * width;
+        for ( int i = 0; i < width; i++ )
+        {
+            if ( keys[start + i] != ids[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long estimatedKeyBytes()
+    {
+        return 8L * keys.length + (long)ESTIMATED_VALUE_BYTES * dictionary.size();
+    }
+
+    void storeKey( int group, Object key )
+    {
+        if ( ( group + 1 ) * width > keys.length )
+        {
+            keys = Arrays.copyOf( keys, keys.length * 2 );
+        }
+        System.arraycopy( (long[])key, 0, keys, group * width, width );
+    }
+}
@@ -0,0 +1,535 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.traversal.Evaluation;
+import org.neo4j.graphdb.traversal.Evaluator;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateColumn;
+import org.neo4j.laboratory.aggregation.aggregates.RetractableColumn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Aggregates that are kept up to date as the graph changes. The paths are traversed
+ * once, and after that every committed transaction is looked at by a transaction
+ * event handler, which only touches the paths the transaction changed:
+ * <ul>
+ * <li>Paths through a deleted relationship are taken out.</li>
+ * <li>Paths through a node or relationship with changed properties are taken out
+ * and put back with their new values, possibly in another group. If a property
+ * they need is missing, they are kept without a group, and put back when their
+ * properties change again.</li>
+ * <li>When a relationship is created at a node the traversal has reached, the paths
+ * are traversed again, and the ones going through a new relationship are added.
+ * Existing paths are left alone. Relationships created elsewhere in the graph can
+ * not be on a path, and cost nothing.</li>
+ * </ul>
+ * Aggregates like Sum, Count and Avg take values back out of their groups directly.
+ * The others, like Min and Max, are calculated again for the groups that lost a value,
+ * from the paths that are left in those groups.
+ *
+ * Every path is kept, together with the values it gave the aggregates. Reading the
+ * results costs one step per group, no matter how many paths there are.
+ *
+ * Descriptions with grouping sets, like rollup and cube, are not supported.
+ */
+public class MaterializedAggregation
+{
+    private final GroupingDescription description;
+    private final AggregatePlan plan;
+    private final AggregateSpec<?>[] specs;
+    private final GraphDatabaseService graphDb;
+    private final TraversalDescription traversal;
+    private final Node startNode;
+    private final TransactionEventHandler<Object> handler;
+
+    private final KeyGroupTable groups = new KeyGroupTable();
+    private final List<Set<MaterializedPath>> groupPaths = new ArrayList<Set<MaterializedPath>>();
+    private final Map<Long, Set<MaterializedPath>> pathsByNode = new HashMap<Long, Set<MaterializedPath>>();
+    private final Map<Long, Set<MaterializedPath>> pathsByRelationship = new HashMap<Long, Set<MaterializedPath>>();
+    private final PathAccess pathAccess = new PathAccess();
+
+    /*
+     * Every node the traversal has reached, whether or not it ended up on a path.
+     * A new path must leave one of them through a created relationship.
+     */
+    private final Set<Long> reachedNodes = new HashSet<Long>();
+
+    /*
+     * Aggregates that can retract values share one column for all groups. The others
+     * get a column per group, holding only group 0, so a group can be calculated
+     * again by replacing its column.
+     */
+    private final AggregateColumn<?>[] columns;
+    private final List<AggregateColumn<?>[]> groupColumns = new ArrayList<AggregateColumn<?>[]>();
+
+    private static class MaterializedPath
+    {
+        final Path path;
+        /*
+         * -1 while the path is in no group, because it failed or was skipped.
+         */
+        int group = -1;
+        Object[] values;
+
+        MaterializedPath( Path path )
+        {
+            this.path = path;
+        }
+    }
+
+    MaterializedAggregation( GroupingDescription description, GraphDatabaseService graphDb,
+                             TraversalDescription traversal, Node startNode, AggregateSpec<?>... specs )
+    {
+        if ( description.hasGroupingSets() )
+        {
+            throw new IllegalArgumentException( "Grouping sets are not supported by materialized aggregation" );
+        }
+        this.description = description;
+        this.plan = new AggregatePlan( specs );
+        this.specs = specs;
+        this.graphDb = graphDb;
+        this.traversal = traversal.evaluator( new Evaluator()
+        {
+            public Evaluation evaluate( Path path )
+            {
+                reachedNodes.add( path.endNode().getId() );
+                return Evaluation.INCLUDE_AND_CONTINUE;
+            }
+        } );
+        this.startNode = startNode;
+        reachedNodes.add( startNode.getId() );
+
+        columns = new AggregateColumn<?>[specs.length];
+        for ( int i = 0; i < specs.length; i++ )
+        {
+            AggregateColumn<?> column = specs[i].newColumn();
+            if ( column instanceof RetractableColumn )
+            {
+                columns[i] = column;
+            }
+        }
+
+        handler = new TransactionEventHandler<Object>()
+        {
+            public Object beforeCommit( TransactionData data ) throws Exception
+            {
+                return null;
+            }
+
+            public void afterCommit( TransactionData data, Object state )
+            {
+                apply( data );
+            }
+
+            public void afterRollback( TransactionData data, Object state )
+            {
+            }
+        };
+
+        // Follow changes from before the traversal starts, so none are missed. They
+        // wait for the monitor, and are applied once the paths are all added.
+        synchronized ( this )
+        {
+            graphDb.registerTransactionEventHandler( handler );
+            try
+            {
+                for ( Path path : this.traversal.traverse( startNode ) )
+                {
+                    addNew( path );
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                graphDb.unregisterTransactionEventHandler( handler );
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return One row per group, holding the result of every aggregate.
+     */
+    public synchronized Map<Key, AggregateRow> results()
+    {
+        Map<Key, AggregateRow> resultMap = new HashMap<Key, AggregateRow>( groups.size() * 2 );
+        for ( int group = 0; group < groups.size(); group++ )
+        {
+            if ( groupPaths.get( group ).isEmpty() )
+            {
+                continue;
+            }
+
+            AggregateColumn<?>[] ownColumns = groupColumns.get( group );
+            Object[] results = new Object[specs.length];
+            for ( int i = 0; i < specs.length; i++ )
+            {
+                results[i] = columns[i] != null ? columns[i].result( group ) : ownColumns[i].result( 0 );
+            }
+            resultMap.put( groups.keyAt( group ), new AggregateRow( specs, results ) );
+        }
+        return resultMap;
+    }
+
+    /**
+     * @param spec One of the aggregates this aggregation keeps.
+     * @return The result of the aggregate for every group.
+     */
+    public <T> Map<Key, T> results( AggregateSpec<T> spec )
+    {
+        Map<Key, T> resultMap = new HashMap<Key, T>();
+        for ( Map.Entry<Key, AggregateRow> row : results().entrySet() )
+        {
+            resultMap.put( row.getKey(), row.getValue().get( spec ) );
+        }
+        return resultMap;
+    }
+
+    /**
+     * Stops following changes to the graph.
+     */
+    public void close()
+    {
+        graphDb.unregisterTransactionEventHandler( handler );
+    }
+
+    private synchronized void apply( TransactionData data )
+    {
+        Set<Integer> dirtyGroups = new HashSet<Integer>();
+
+        for ( Relationship relationship : data.deletedRelationships() )
+        {
+            Set<MaterializedPath> removed = pathsByRelationship.get( relationship.getId() );
+            if ( removed != null )
+            {
+                for ( MaterializedPath path : new ArrayList<MaterializedPath>( removed ) )
+                {
+                    remove( path, dirtyGroups );
+                    unindex( path );
+                }
+            }
+        }
+
+        Set<MaterializedPath> changed = new LinkedHashSet<MaterializedPath>();
+        collectChanged( data.assignedNodeProperties(), pathsByNode, changed );
+        collectChanged( data.removedNodeProperties(), pathsByNode, changed );
+        collectChanged( data.assignedRelationshipProperties(), pathsByRelationship, changed );
+        collectChanged( data.removedRelationshipProperties(), pathsByRelationship, changed );
+        for ( MaterializedPath path : changed )
+        {
+            remove( path, dirtyGroups );
+            tryAdd( path );
+        }
+
+        Set<Long> createdRelationships = new HashSet<Long>();
+        boolean reached = false;
+        for ( Relationship relationship : data.createdRelationships() )
+        {
+            createdRelationships.add( relationship.getId() );
+            reached |= reachedNodes.contains( relationship.getStartNode().getId() ) ||
+                    reachedNodes.contains( relationship.getEndNode().getId() );
+        }
+        if ( reached )
+        {
+            addCreatedPaths( createdRelationships );
+        }
+
+        for ( int group : dirtyGroups )
+        {
+            recalculate( group );
+        }
+    }
+
+    private static <T extends PropertyContainer> void collectChanged( Iterable<PropertyEntry<T>> entries,
+                                                                      Map<Long, Set<MaterializedPath>> index,
+                                                                      Set<MaterializedPath> changed )
+    {
+        for ( PropertyEntry<T> entry : entries )
+        {
+            T entity = entry.entity();
+            long id = entity instanceof Node ? ( (Node)entity ).getId() : ( (Relationship)entity ).getId();
+            Set<MaterializedPath> paths = index.get( id );
+            if ( paths != null )
+            {
+                changed.addAll( paths );
+            }
+        }
+    }
+
+    private void addCreatedPaths( Set<Long> createdRelationships )
+    {
+        for ( Path path : traversal.traverse( startNode ) )
+        {
+            for ( Relationship relationship : path.relationships() )
+            {
+                if ( createdRelationships.contains( relationship.getId() ) )
+                {
+                    if ( !isKnown( path, relationship.getId() ) )
+                    {
+                        addNew( path );
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True if the path is already kept, which happens when the relationship
+     *         was created while the view was being built, and the traversal saw it.
+     */
+    private boolean isKnown( Path path, long relationshipId )
+    {
+        Set<MaterializedPath> candidates = pathsByRelationship.get( relationshipId );
+        if ( candidates == null )
+        {
+            return false;
+        }
+        for ( MaterializedPath candidate : candidates )
+        {
+            if ( sameRelationships( candidate.path, path ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean sameRelationships( Path first, Path second )
+    {
+        if ( first.length() != second.length() )
+        {
+            return false;
+        }
+        Iterator<Relationship> others = second.relationships().iterator();
+        for ( Relationship relationship : first.relationships() )
+        {
+            if ( relationship.getId() != others.next().getId() )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds and indexes a path. A path that can not be added yet is still indexed,
+     * so it is tried again when its properties change.
+     */
+    private void addNew( Path path )
+    {
+        MaterializedPath materializedPath = new MaterializedPath( path );
+        index( materializedPath );
+        tryAdd( materializedPath );
+    }
+
+    private void tryAdd( MaterializedPath path )
+    {
+        try
+        {
+            add( path );
+        }
+        catch ( NotFoundException e )
+        {
+            // A property the path is grouped or aggregated by is missing
+        }
+    }
+
+    /**
+     * @return False if the path is skipped, see MissingPolicy.
+     */
+    private boolean add( MaterializedPath path )
+    {
+        pathAccess.reset( path.path );
+        Key key = description.getGroupingKey( pathAccess );
+        Object[] values = key == null ? null : plan.values( pathAccess );
+        if ( values == null )
+        {
+            return false;
+        }
+
+        int group = groups.getOrAdd( key );
+        if ( group == groupPaths.size() )
+        {
+            addGroup( group );
+        }
+
+        path.group = group;
+        path.values = values;
+        AggregateColumn<?>[] ownColumns = groupColumns.get( group );
+        for ( int i = 0; i < specs.length; i++ )
+        {
+            if ( columns[i] != null )
+            {
+                plan.accumulate( i, columns[i], group, path.values[i] );
+            }
+            else
+            {
+                plan.accumulate( i, ownColumns[i], 0, path.values[i] );
+            }
+        }
+
+        groupPaths.get( group ).add( path );
+        return true;
+    }
+
+    private void remove( MaterializedPath path, Set<Integer> dirtyGroups )
+    {
+        if ( path.group == -1 )
+        {
+            return;
+        }
+        boolean dirty = false;
+        for ( int i = 0; i < specs.length; i++ )
+        {
+            if ( columns[i] != null )
+            {
+                if ( path.values[i] != null )
+                {
+                    ( (RetractableColumn<?>)columns[i] ).retract( path.group, path.values[i] );
+                }
+            }
+            else
+            {
+                dirty = true;
+            }
+        }
+        if ( dirty )
+        {
+            dirtyGroups.add( path.group );
+        }
+        groupPaths.get( path.group ).remove( path );
+        path.group = -1;
+        path.values = null;
+    }
+
+    private void addGroup( int group )
+    {
+        for ( AggregateColumn<?> column : columns )
+        {
+            if ( column != null )
+            {
+                column.addGroup( group );
+            }
+        }
+        groupColumns.add( newGroupColumns() );
+        groupPaths.add( new LinkedHashSet<MaterializedPath>() );
+    }
+
+    private AggregateColumn<?>[] newGroupColumns()
+    {
+        AggregateColumn<?>[] ownColumns = new AggregateColumn<?>[specs.length];
+        for ( int i = 0; i < specs.length; i++ )
+        {
+            if ( columns[i] == null )
+            {
+                ownColumns[i] = specs[i].newColumn();
+                ownColumns[i].addGroup( 0 );
+            }
+        }
+        return ownColumns;
+    }
+
+    /**
+     * Calculates the aggregates that can not retract values again for a group, from
+     * the values of the paths left in it.
+     */
+    private void recalculate( int group )
+    {
+        AggregateColumn<?>[] ownColumns = newGroupColumns();
+        for ( MaterializedPath path : groupPaths.get( group ) )
+        {
+            for ( int i = 0; i < specs.length; i++ )
+            {
+                if ( ownColumns[i] != null )
+                {
+                    plan.accumulate( i, ownColumns[i], 0, path.values[i] );
+                }
+            }
+        }
+        groupColumns.set( group, ownColumns );
+    }
+
+    private void index( MaterializedPath path )
+    {
+        for ( Node node : path.path.nodes() )
+        {
+            indexSet( pathsByNode, node.getId() ).add( path );
+        }
+        for ( Relationship relationship : path.path.relationships() )
+        {
+            indexSet( pathsByRelationship, relationship.getId() ).add( path );
+        }
+    }
+
+    private void unindex( MaterializedPath path )
+    {
+        for ( Node node : path.path.nodes() )
+        {
+            unindexFrom( pathsByNode, node.getId(), path );
+        }
+        for ( Relationship relationship : path.path.relationships() )
+        {
+            unindexFrom( pathsByRelationship, relationship.getId(), path );
+        }
+    }
+
+    private static Set<MaterializedPath> indexSet( Map<Long, Set<MaterializedPath>> index, long id )
+    {
+        Set<MaterializedPath> paths = index.get( id );
+        if ( paths == null )
+        {
+            paths = new HashSet<MaterializedPath>();
+            index.put( id, paths );
+        }
+        return paths;
+    }
+
+    private static void unindexFrom( Map<Long, Set<MaterializedPath>> index, long id, MaterializedPath path )
+    {
+        Set<MaterializedPath> paths = index.get( id );
+        if ( paths != null )
+        {
+            paths.remove( path );
+            if ( paths.isEmpty() )
+            {
+                index.remove( id );
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.NotFoundException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What to do with a path when a property or relationship that a grouping or an
+ * aggregate needs is missing from it: fail, skip the path, or go on with null or
+ * a default value in place of the missing one. Missing values are found without
+ * exceptions, so only the fail policy throws.
+ *
+ * A policy counts the paths it has been applied to. Give every grouping and
+ * aggregate a policy of its own to get counts for each.
+ */
+public final class MissingPolicy
+{
+    /**
+     * Returned in place of a value when the path is to be skipped.
+     */
+    public static final Object SKIPPED = new Object()
+    {
+        @Override
+        public String toString()
+        {
+            return "SKIPPED";
+        }
+    };
+
+    private enum Kind
+    {
+        FAIL, SKIP_PATH, USE_NULL, USE_DEFAULT
+    }
+
+    private final Kind kind;
+    private final Object defaultValue;
+    private final AtomicLong applied = new AtomicLong();
+
+    private MissingPolicy( Kind kind, Object defaultValue )
+    {
+        this.kind = kind;
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * Throws a NotFoundException. This is what happens when no policy is given.
+     */
+    public static MissingPolicy fail()
+    {
+        return new MissingPolicy( Kind.FAIL, null );
+    }
+
+    /**
+     * Leaves the path out of the grouping and out of all the aggregates.
+     */
+    public static MissingPolicy skipPath()
+    {
+        return new MissingPolicy( Kind.SKIP_PATH, null );
+    }
+
+    /**
+     * For a grouping, puts the path in the group where the value is null. For an
+     * aggregate, leaves the path out of that aggregate only.
+     */
+    public static MissingPolicy useNull()
+    {
+        return new MissingPolicy( Kind.USE_NULL, null );
+    }
+
+    /**
+     * Uses the given value in place of the missing one.
+     */
+    public static MissingPolicy useDefault( Object value )
+    {
+        return new MissingPolicy( Kind.USE_DEFAULT, value );
+    }
+
+    /**
+     * Gives the value to go on with when a value is missing.
+     *
+     * @param description Says what is missing, for the message when failing.
+     * @param subject     Completes the description, only turned into a string when failing.
+     * @return The value to use, null, or SKIPPED if the path is to be skipped.
+     */
+    public Object valueForMissing( String description, Object subject )
+    {
+        if ( kind == Kind.FAIL )
+        {
+            throw new NotFoundException( description + subject );
+        }
+        applied.incrementAndGet();
+        return kind == Kind.SKIP_PATH ? SKIPPED : defaultValue;
+    }
+
+    /**
+     * Counts a prefix that a traversal was pruned at because of this policy, see
+     * AggregatingEvaluator. The paths that would have continued the prefix are
+     * never reached, so the prefix counts as one path.
+     */
+    public void pruned()
+    {
+        applied.incrementAndGet();
+    }
+
+    /**
+     * @return True if a path missing the value is left out without an error, so a
+     *         traversal can be pruned where the value is missing.
+     */
+    public boolean skipsPath()
+    {
+        return kind == Kind.SKIP_PATH;
+    }
+
+    /**
+     * @return The number of paths this policy has been applied to: the paths it
+     *         skipped, or that went on with null or the default value, and the
+     *         prefixes a traversal was pruned at.
+     */
+    public long getAppliedCount()
+    {
+        return applied.get();
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( !( o instanceof MissingPolicy ) )
+        {
+            return false;
+        }
+        MissingPolicy other = (MissingPolicy)o;
+        return other.kind == kind &&
+                ( defaultValue == null ? other.defaultValue == null : defaultValue.equals( other.defaultValue ) );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * kind.hashCode() + ( defaultValue == null ? 0 : defaultValue.hashCode() );
+    }
+}
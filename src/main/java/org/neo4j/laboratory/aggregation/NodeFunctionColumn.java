@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateColumn;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateNodeFunction;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateNodeFunctionFactory;
+
+import java.util.Arrays;
+
+/**
+ * A column for node aggregate functions that have no column of their own, keeping
+ * one function object per group.
+ */
+class NodeFunctionColumn<T> implements AggregateColumn<T>
+{
+    private final AggregateNodeFunctionFactory<T> functionFactory;
+    private AggregateNodeFunction<T>[] functions = newArray( GroupTable.INITIAL_CAPACITY );
+
+    NodeFunctionColumn( AggregateNodeFunctionFactory<T> functionFactory )
+    {
+        this.functionFactory = functionFactory;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static <T> AggregateNodeFunction<T>[] newArray( int size )
+    {
+        return new AggregateNodeFunction[size];
+    }
+
+    public void addGroup( int group )
+    {
+        if ( group == functions.length )
+        {
+            functions = Arrays.copyOf( functions, group * 2 );
+        }
+        functions[group] = functionFactory.newGrouping();
+    }
+
+    public void accumulate( int group, Object value )
+    {
+        functions[group].accumulate( (Node)value );
+    }
+
+    public void merge( int group, AggregateColumn<T> other, int otherGroup )
+    {
+        functions[group].merge( ( (NodeFunctionColumn<T>)other ).functions[otherGroup] );
+    }
+
+    public T result( int group )
+    {
+        return functions[group].result();
+    }
+}
@@ -0,0 +1,322 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Gives the key makers and aggregates access to the path currently being grouped.
+ * Nodes are looked up by offset, and every node that is walked past is remembered,
+ * so each node in a path is only walked to once however many key makers and
+ * aggregates ask for it. The walk only goes as far into the path as needed.
+ *
+ * Relationships are looked up by type. The first time a path is asked for a
+ * relationship, its relationships are read once, and the first relationship of every
+ * type asked for so far is found in the same pass. Most traversals give paths of a
+ * fixed shape, so the type objects along the path are remembered together with the
+ * positions that were found. A later path of the same length uses the remembered
+ * positions if its relationships up to the last of them have the very same type
+ * objects. Only those relationships are read, and no type names are compared.
+ *
+ * Node properties can be read through a PropertyMemo, so nodes that show up in many
+ * paths have their properties read once.
+ *
+ * One instance is reused for path after path, and must only be used by one thread
+ * at a time.
+ */
+public class PathAccess
+{
+    private Path path;
+    private int length;
+    private Iterator<Node> nodeIterator;
+    private Node[] nodes = new Node[8];
+    private int resolvedNodes;
+
+    private Relationship[] relationships = new Relationship[8];
+    private boolean relationshipsFound;
+    private RelationshipType[] types = new RelationshipType[0];
+    private int[] typePositions = new int[0];
+
+    /*
+     * The types of the path the positions were found in, the length of that path,
+     * and how many of its first relationships decide the positions.
+     */
+    private RelationshipType[] shape = new RelationshipType[8];
+    private int shapeLength = -1;
+    private int shapeChecked;
+
+    private final PropertyMemo memo;
+
+    public PathAccess()
+    {
+        this( null );
+    }
+
+    /**
+     * @param memo The memo to read node properties through, or null to read them
+     *             from the nodes every time.
+     */
+    public PathAccess( PropertyMemo memo )
+    {
+        this.memo = memo;
+    }
+
+    /**
+     * Moves on to a new path, forgetting everything about the previous one.
+     *
+     * @param path The path to give access to.
+     * @return This path access.
+     */
+    public PathAccess reset( Path path )
+    {
+        this.path = path;
+        this.length = path.length();
+        this.nodeIterator = null;
+        this.resolvedNodes = 0;
+        this.relationshipsFound = false;
+        return this;
+    }
+
+    public Path getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Reads a property of a node in the path, through the memo if there is one.
+     */
+    public Object getProperty( Node node, String key )
+    {
+        return memo == null ? node.getProperty( key ) : memo.getProperty( node, key );
+    }
+
+    /**
+     * Reads a property of a node in the path, like getProperty.
+     *
+     * @return The value, or null if the node does not have the property.
+     */
+    public Object findProperty( Node node, String key )
+    {
+        return memo == null ? node.getProperty( key, null ) : memo.findProperty( node, key );
+    }
+
+    public boolean hasProperty( Node node, String key )
+    {
+        return memo == null ? node.hasProperty( key ) : memo.hasProperty( node, key );
+    }
+
+    /**
+     * @return The number of relationships in the path.
+     */
+    public int length()
+    {
+        return length;
+    }
+
+    /**
+     * Finds a node in the path.
+     *
+     * @param offset If the offset is 0, the last node in the path is returned.
+     *               If the offset is negative, it points out how many steps from the end
+     *               to walk the path to find the node.
+     *               If the offset is positive, it points out how many steps from the beginning
+     *               of the path to walk to find the node.
+     * @return The node the offset points to.
+     */
+    public Node getNode( int offset )
+    {
+        Node node = findNode( offset );
+        if ( node == null )
+        {
+            throw new NotFoundException( "Offset points to outside the path" );
+        }
+        return node;
+    }
+
+    /**
+     * Finds a node in the path, like getNode.
+     *
+     * @return The node, or null if the offset points to outside the path.
+     */
+    public Node findNode( int offset )
+    {
+        if ( offset == 0 )
+        {
+            return path.endNode();
+        }
+
+        int position = offset > 0 ? offset : length + offset;
+        if ( position < 0 || position > length )
+        {
+            return null;
+        }
+
+        while ( resolvedNodes <= position )
+        {
+            if ( nodeIterator == null )
+            {
+                nodeIterator = path.nodes().iterator();
+            }
+            if ( resolvedNodes == nodes.length )
+            {
+                Node[] newNodes = new Node[nodes.length * 2];
+                System.arraycopy( nodes, 0, newNodes, 0, nodes.length );
+                nodes = newNodes;
+            }
+            nodes[resolvedNodes++] = nodeIterator.next();
+        }
+
+        return nodes[position];
+    }
+
+    /**
+     * Finds the first relationship of a type in the path, starting from the beginning.
+     *
+     * @param type The relationship type to look for.
+     * @return The relationship.
+     */
+    public Relationship getRelationship( RelationshipType type )
+    {
+        Relationship relationship = findRelationship( type );
+        if ( relationship == null )
+        {
+            throw new NotFoundException( "Did not find relationship of type " + type );
+        }
+        return relationship;
+    }
+
+    /**
+     * Finds the first relationship of a type in the path, like getRelationship.
+     *
+     * @param type The relationship type to look for.
+     * @return The relationship, or null if there is none of the type in the path.
+     */
+    public Relationship findRelationship( RelationshipType type )
+    {
+        int index = indexOf( type );
+        if ( index == -1 )
+        {
+            index = addType( type );
+            relationshipsFound = false;
+        }
+        if ( !relationshipsFound )
+        {
+            findRelationships();
+        }
+
+        int position = typePositions[index];
+        return position == -1 ? null : relationships[position];
+    }
+
+    private int indexOf( RelationshipType type )
+    {
+        for ( int i = 0; i < types.length; i++ )
+        {
+            if ( types[i] == type || types[i].name().equals( type.name() ) )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int addType( RelationshipType type )
+    {
+        int index = types.length;
+        types = Arrays.copyOf( types, index + 1 );
+        types[index] = type;
+        typePositions = Arrays.copyOf( typePositions, index + 1 );
+        shapeLength = -1;
+        return index;
+    }
+
+    /**
+     * Reads the relationships of the path, and finds the first relationship of every
+     * type, unless the path starts with the same types as the one the positions were
+     * found in.
+     */
+    private void findRelationships()
+    {
+        if ( relationships.length < length )
+        {
+            relationships = new Relationship[Math.max( length, relationships.length * 2 )];
+        }
+        Iterator<Relationship> iterator = path.relationships().iterator();
+        boolean sameShape = shapeLength == length;
+        int read = 0;
+        while ( sameShape && read < shapeChecked )
+        {
+            relationships[read] = iterator.next();
+            sameShape = relationships[read].getType() == shape[read];
+            read++;
+        }
+
+        if ( !sameShape )
+        {
+            while ( read < length )
+            {
+                relationships[read++] = iterator.next();
+            }
+            findTypePositions();
+        }
+        relationshipsFound = true;
+    }
+
+    private void findTypePositions()
+    {
+        Arrays.fill( typePositions, -1 );
+        if ( shape.length < length )
+        {
+            shape = new RelationshipType[Math.max( length, shape.length * 2 )];
+        }
+        for ( int position = 0; position < length; position++ )
+        {
+            shape[position] = relationships[position].getType();
+            String name = shape[position].name();
+            for ( int i = 0; i < types.length; i++ )
+            {
+                if ( typePositions[i] == -1 && types[i].name().equals( name ) )
+                {
+                    typePositions[i] = position;
+                }
+            }
+        }
+
+        // A type that is not in the path needs the whole path to be sure of
+        shapeChecked = 0;
+        for ( int position : typePositions )
+        {
+            shapeChecked = position == -1 ? length : Math.max( shapeChecked, position + 1 );
+            if ( shapeChecked == length )
+            {
+                break;
+            }
+        }
+        shapeLength = length;
+    }
+}
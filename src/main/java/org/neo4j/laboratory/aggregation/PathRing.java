@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.Path;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring of paths, handed from the thread that drives a traverser to the
+ * threads that aggregate them. All slots are allocated up front. Every slot has a
+ * sequence number that tells whether it is free for the next lap of the producer
+ * or holds a path for the consumers, so no locks are taken.
+ *
+ * The producer waits while the ring is full, which keeps memory bounded when the
+ * consumers fall behind. Consumers wait while it is empty, until the producer
+ * closes it. Waiting threads spin for a while, then back off and sleep briefly.
+ *
+ * There must only be one producer. There can be any number of consumers.
+ */
+final class PathRing
+{
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 50 * 1000;
+
+    private final Path[] paths;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private long tail;
+    private volatile boolean closed;
+    private volatile boolean aborted;
+
+    /**
+     * @param capacity The most paths waiting to be aggregated, rounded up to a power of two.
+     */
+    PathRing( int capacity )
+    {
+        int size = Integer.highestOneBit( Math.max( 1, capacity - 1 ) ) << 1;
+        this.paths = new Path[size];
+        this.sequences = new AtomicLongArray( size );
+        this.mask = size - 1;
+        for ( int i = 0; i < size; i++ )
+        {
+            sequences.set( i, i );
+        }
+    }
+
+    /**
+     * Adds a path, waiting for room if the ring is full.
+     *
+     * @return False if a consumer has given up, and no more paths should be added.
+     */
+    boolean put( Path path )
+    {
+        int slot = (int)tail & mask;
+        for ( int attempt = 0; sequences.get( slot ) != tail; attempt++ )
+        {
+            if ( aborted )
+            {
+                return false;
+            }
+            backOff( attempt );
+        }
+        paths[slot] = path;
+        sequences.lazySet( slot, tail + 1 );
+        tail++;
+        return true;
+    }
+
+    /**
+     * Takes the next path, waiting for one if the ring is empty.
+     *
+     * @return The path, or null when the ring is closed and empty.
+     */
+    Path take()
+    {
+        for ( int attempt = 0; ; attempt++ )
+        {
+            long position = head.get();
+            int slot = (int)position & mask;
+            long sequence = sequences.get( slot );
+            if ( sequence == position + 1 )
+            {
+                if ( head.compareAndSet( position, position + 1 ) )
+                {
+                    Path path = paths[slot];
+                    paths[slot] = null;
+                    sequences.lazySet( slot, position + paths.length );
+                    return path;
+                }
+                attempt = 0;
+            }
+            else if ( sequence < position + 1 )
+            {
+                if ( closed && sequences.get( slot ) < position + 1 )
+                {
+                    return null;
+                }
+                backOff( attempt );
+            }
+        }
+    }
+
+    /**
+     * Tells the consumers that no more paths will be added.
+     */
+    void close()
+    {
+        closed = true;
+    }
+
+    /**
+     * Tells the producer that a consumer has given up.
+     */
+    void abort()
+    {
+        aborted = true;
+    }
+
+    private static void backOff( int attempt )
+    {
+        if ( attempt < SPINS )
+        {
+            return;
+        }
+        if ( attempt < SPINS * 2 )
+        {
+            Thread.yield();
+        }
+        else
+        {
+            LockSupport.parkNanos( PARK_NANOS );
+        }
+    }
+}
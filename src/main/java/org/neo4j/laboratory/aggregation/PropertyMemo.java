@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.Node;
+
+import java.util.Arrays;
+
+/**
+ * Remembers node properties read while grouping and aggregating, so a node that
+ * shows up in many paths, like the department all its employees work for, has its
+ * properties read once instead of once per path.
+ *
+ * Every property key gets a table of its own with room for a fixed number of
+ * nodes, so properties that are only read once, like the salary of an employee,
+ * never push out the ones that are read over and over. A node is kept in the slot
+ * its id hashes to, and replaces whatever node was there before.
+ *
+ * A memo is made for one run over the paths and does not see changes made to the
+ * nodes while it is in use. It must only be used by one thread at a time.
+ */
+public class PropertyMemo
+{
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private final int mask;
+    private String[] keys = new String[0];
+    private long[][] nodeIds = new long[0][];
+    private Object[][] values = new Object[0][];
+    private long hits;
+    private long misses;
+
+    public PropertyMemo()
+    {
+        this( DEFAULT_CAPACITY );
+    }
+
+    /**
+     * @param capacity The most nodes to remember per property key, rounded up to a
+     *                 power of two.
+     */
+    public PropertyMemo( int capacity )
+    {
+        int size = Integer.highestOneBit( Math.max( 1, capacity - 1 ) ) << 1;
+        this.mask = size - 1;
+    }
+
+    public Object getProperty( Node node, String key )
+    {
+        return read( node, key, true );
+    }
+
+    public boolean hasProperty( Node node, String key )
+    {
+        return read( node, key, false ) != null;
+    }
+
+    /**
+     * @return The value, or null if the node does not have the property.
+     */
+    public Object findProperty( Node node, String key )
+    {
+        return read( node, key, false );
+    }
+
+    /**
+     * @param required Whether a missing property is an error, or gives null.
+     */
+    private Object read( Node node, String key, boolean required )
+    {
+        int index = indexOf( key );
+        long id = node.getId();
+        int slot = slot( id );
+        Object[] keyValues = values[index];
+        if ( keyValues[slot] != null && nodeIds[index][slot] == id )
+        {
+            hits++;
+            return keyValues[slot];
+        }
+
+        misses++;
+        Object value = required ? node.getProperty( key ) : node.getProperty( key, null );
+        if ( value != null )
+        {
+            nodeIds[index][slot] = id;
+            keyValues[slot] = value;
+        }
+        return value;
+    }
+
+    private int indexOf( String key )
+    {
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            if ( keys[i] == key || keys[i].equals( key ) )
+            {
+                return i;
+            }
+        }
+
+        int index = keys.length;
+        keys = Arrays.copyOf( keys, index + 1 );
+        nodeIds = Arrays.copyOf( nodeIds, index + 1 );
+        values = Arrays.copyOf( values, index + 1 );
+        keys[index] = key;
+        nodeIds[index] = new long[mask + 1];
+        values[index] = new Object[mask + 1];
+        return index;
+    }
+
+    private int slot( long id )
+    {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int)( h ^ ( h >>> 32 ) ) & mask;
+    }
+
+    /**
+     * @return The number of property reads answered from the memo.
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return The number of property reads that went to the node.
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return The share of property reads answered from the memo, or 0 if nothing
+     *         has been read.
+     */
+    public double getHitRate()
+    {
+        long reads = hits + misses;
+        return reads == 0 ? 0 : (double)hits / reads;
+    }
+}
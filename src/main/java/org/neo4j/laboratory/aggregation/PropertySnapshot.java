@@ -0,0 +1,436 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A copy of some node properties, laid out in a memory mapped file with one column
+ * per property, indexed by node id. Integral properties are kept as longs, other
+ * numbers as doubles, and strings as int codes into a dictionary that is kept on
+ * the heap. Every column also has a bitmap of the nodes that have the property.
+ *
+ * A Grouping reading from a snapshot looks the properties up in the columns instead
+ * of asking the nodes, and numeric values go to the aggregates as primitives.
+ *
+ * Neo4j has no transaction id to record, so from the moment it is created, the
+ * snapshot follows committed transactions and counts the ones that change one of
+ * its properties or delete nodes. Once that count is above zero, the snapshot is
+ * stale.
+ */
+public class PropertySnapshot
+{
+    private static final int MAX_NODES = Integer.MAX_VALUE / 8;
+
+    enum Type
+    {
+        LONG, DOUBLE, STRING
+    }
+
+    /**
+     * The values of one property for all nodes.
+     */
+    static final class Column
+    {
+        final String key;
+        final Type type;
+        private final MappedByteBuffer present;
+        private final MappedByteBuffer values;
+        private final String[] dictionary;
+        private final long nodeCount;
+
+        Column( String key, Type type, MappedByteBuffer present, MappedByteBuffer values,
+                String[] dictionary, long nodeCount )
+        {
+            this.key = key;
+            this.type = type;
+            this.present = present;
+            this.values = values;
+            this.dictionary = dictionary;
+            this.nodeCount = nodeCount;
+        }
+
+        boolean isNumeric()
+        {
+            return type != Type.STRING;
+        }
+
+        boolean has( long id )
+        {
+            return id < nodeCount && ( present.getLong( (int)( id >>> 6 ) * 8 ) & ( 1L << id ) ) != 0;
+        }
+
+        long getLong( long id )
+        {
+            check( id );
+            return type == Type.LONG ? values.getLong( (int)id * 8 ) : (long)values.getDouble( (int)id * 8 );
+        }
+
+        double getDouble( long id )
+        {
+            check( id );
+            return type == Type.DOUBLE ? values.getDouble( (int)id * 8 ) : values.getLong( (int)id * 8 );
+        }
+
+        Object get( long id )
+        {
+            check( id );
+            switch ( type )
+            {
+                case LONG:
+                    return values.getLong( (int)id * 8 );
+                case DOUBLE:
+                    return values.getDouble( (int)id * 8 );
+                default:
+                    return dictionary[values.getInt( (int)id * 4 )];
+            }
+        }
+
+        private void check( long id )
+        {
+            if ( !has( id ) )
+            {
+                throw new NotFoundException( key + " property not found for node " + id + " in the snapshot" );
+            }
+        }
+    }
+
+    private final GraphDatabaseService graphDb;
+    private final File file;
+    private final Set<String> keys;
+    private final Map<String, Column> columns = new HashMap<String, Column>();
+    private final long created = System.currentTimeMillis();
+    private final TransactionEventHandler<Object> handler;
+    private final AtomicInteger staleTransactions = new AtomicInteger();
+
+    private PropertySnapshot( GraphDatabaseService graphDb, File file, String[] keys )
+    {
+        this.graphDb = graphDb;
+        this.file = file;
+        this.keys = new HashSet<String>( Arrays.asList( keys ) );
+        this.handler = new TransactionEventHandler<Object>()
+        {
+            public Object beforeCommit( TransactionData data ) throws Exception
+            {
+                return null;
+            }
+
+            public void afterCommit( TransactionData data, Object state )
+            {
+                if ( changesSnapshot( data ) )
+                {
+                    staleTransactions.incrementAndGet();
+                }
+            }
+
+            public void afterRollback( TransactionData data, Object state )
+            {
+            }
+        };
+    }
+
+    /**
+     * Copies properties of all nodes into a snapshot file. Every property has to hold
+     * values of one kind on all nodes: integral numbers, numbers, or strings.
+     *
+     * @param graphDb The database to copy from.
+     * @param file    The file to write the snapshot to. Existing content is replaced.
+     * @param keys    The properties to copy.
+     * @return The snapshot, mapped into memory. Close it when it is no longer needed.
+     */
+    public static PropertySnapshot create( GraphDatabaseService graphDb, File file, String... keys )
+            throws IOException
+    {
+        PropertySnapshot snapshot = new PropertySnapshot( graphDb, file, keys );
+        // Follow changes from before the copy starts, so none are missed
+        graphDb.registerTransactionEventHandler( snapshot.handler );
+        try
+        {
+            snapshot.write( keys );
+        }
+        catch ( IOException e )
+        {
+            snapshot.close();
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            snapshot.close();
+            throw e;
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return true if a transaction has changed the snapshotted properties since the
+     *         snapshot was taken.
+     */
+    public boolean isStale()
+    {
+        return staleTransactions.get() > 0;
+    }
+
+    /**
+     * @return The number of committed transactions the snapshot has missed.
+     */
+    public int getStaleTransactions()
+    {
+        return staleTransactions.get();
+    }
+
+    /**
+     * @return When the snapshot was taken, in milliseconds since the epoch.
+     */
+    public long getCreated()
+    {
+        return created;
+    }
+
+    public Set<String> getKeys()
+    {
+        return keys;
+    }
+
+    /**
+     * Stops following transactions. The file is left for the operating system to
+     * clean up when the mapping goes away, or for the caller to delete.
+     */
+    public void close()
+    {
+        graphDb.unregisterTransactionEventHandler( handler );
+    }
+
+    /**
+     * @return The column of a property, or null if it is not in the snapshot.
+     */
+    Column column( String key )
+    {
+        return columns.get( key );
+    }
+
+    private boolean changesSnapshot( TransactionData data )
+    {
+        if ( data.deletedNodes().iterator().hasNext() )
+        {
+            return true;
+        }
+        for ( PropertyEntry<Node> entry : data.assignedNodeProperties() )
+        {
+            if ( keys.contains( entry.key() ) )
+            {
+                return true;
+            }
+        }
+        for ( PropertyEntry<Node> entry : data.removedNodeProperties() )
+        {
+            if ( keys.contains( entry.key() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void write( String[] keys ) throws IOException
+    {
+        long maxId = -1;
+        Type[] types = new Type[keys.length];
+        List<Map<String, Integer>> dictionaries = new ArrayList<Map<String, Integer>>();
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            dictionaries.add( new HashMap<String, Integer>() );
+        }
+
+        for ( Node node : graphDb.getAllNodes() )
+        {
+            maxId = Math.max( maxId, node.getId() );
+            for ( int i = 0; i < keys.length; i++ )
+            {
+                Object value = node.getProperty( keys[i], null );
+                if ( value != null )
+                {
+                    types[i] = typeOf( keys[i], types[i], value );
+                    if ( types[i] == Type.STRING && !dictionaries.get( i ).containsKey( value ) )
+                    {
+                        dictionaries.get( i ).put( (String)value, dictionaries.get( i ).size() );
+                    }
+                }
+            }
+        }
+
+        long nodeCount = maxId + 1;
+        if ( nodeCount > MAX_NODES )
+        {
+            throw new IllegalArgumentException( "Too many nodes for a snapshot: " + nodeCount );
+        }
+        int presentSize = (int)( ( nodeCount + 63 ) / 64 ) * 8;
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+        try
+        {
+            randomAccessFile.setLength( 0 );
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer[] present = new MappedByteBuffer[keys.length];
+            MappedByteBuffer[] values = new MappedByteBuffer[keys.length];
+            long position = 0;
+            for ( int i = 0; i < keys.length; i++ )
+            {
+                if ( types[i] == null )
+                {
+                    types[i] = Type.LONG;
+                }
+                int valueSize = (int)nodeCount * ( types[i] == Type.STRING ? 4 : 8 );
+                present[i] = channel.map( FileChannel.MapMode.READ_WRITE, position, presentSize );
+                position += presentSize;
+                values[i] = channel.map( FileChannel.MapMode.READ_WRITE, position, valueSize );
+                position += valueSize;
+            }
+
+            for ( Node node : graphDb.getAllNodes() )
+            {
+                long id = node.getId();
+                if ( id > maxId )
+                {
+                    continue;
+                }
+                for ( int i = 0; i < keys.length; i++ )
+                {
+                    Object value = node.getProperty( keys[i], null );
+                    if ( !fits( types[i], value ) )
+                    {
+                        // Missing, or changed to another kind since the first pass
+                        continue;
+                    }
+                    int word = (int)( id >>> 6 ) * 8;
+                    present[i].putLong( word, present[i].getLong( word ) | ( 1L << id ) );
+                    switch ( types[i] )
+                    {
+                        case LONG:
+                            values[i].putLong( (int)id * 8, ( (Number)value ).longValue() );
+                            break;
+                        case DOUBLE:
+                            values[i].putDouble( (int)id * 8, ( (Number)value ).doubleValue() );
+                            break;
+                        default:
+                            Integer code = dictionaries.get( i ).get( value );
+                            if ( code == null )
+                            {
+                                code = dictionaries.get( i ).size();
+                                dictionaries.get( i ).put( (String)value, code );
+                            }
+                            values[i].putInt( (int)id * 4, code );
+                    }
+                }
+            }
+
+            for ( int i = 0; i < keys.length; i++ )
+            {
+                present[i].force();
+                values[i].force();
+                columns.put( keys[i], new Column( keys[i], types[i], present[i], values[i],
+                        dictionary( dictionaries.get( i ) ), nodeCount ) );
+            }
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+    private static String[] dictionary( Map<String, Integer> codes )
+    {
+        String[] dictionary = new String[codes.size()];
+        for ( Map.Entry<String, Integer> entry : codes.entrySet() )
+        {
+            dictionary[entry.getValue()] = entry.getKey();
+        }
+        return dictionary;
+    }
+
+    private static boolean fits( Type type, Object value )
+    {
+        switch ( type )
+        {
+            case LONG:
+                return value instanceof Long || value instanceof Integer || value instanceof Short ||
+                        value instanceof Byte;
+            case DOUBLE:
+                return value instanceof Number;
+            default:
+                return value instanceof String;
+        }
+    }
+
+    /**
+     * Widens the type of a property to also hold a value: longs widen to doubles,
+     * anything else has to stay the same.
+     */
+    private static Type typeOf( String key, Type type, Object value )
+    {
+        Type valueType;
+        if ( value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte )
+        {
+            valueType = Type.LONG;
+        }
+        else if ( value instanceof Number )
+        {
+            valueType = Type.DOUBLE;
+        }
+        else if ( value instanceof String )
+        {
+            valueType = Type.STRING;
+        }
+        else
+        {
+            throw new IllegalArgumentException( "Can not snapshot property " + key + " with values of type " +
+                    value.getClass().getName() );
+        }
+
+        if ( type == null || type == valueType )
+        {
+            return valueType;
+        }
+        if ( type != Type.STRING && valueType != Type.STRING )
+        {
+            return Type.DOUBLE;
+        }
+        throw new IllegalArgumentException( "Can not snapshot property " + key + ", it holds both strings and numbers" );
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import java.util.Comparator;
+
+/**
+ * The order to list aggregate results in. Missing results, like the average of a
+ * group without values, come last in both orders.
+ */
+public enum SortOrder
+{
+    ASCENDING,
+    DESCENDING;
+
+    <T extends Comparable<? super T>> Comparator<T> comparator()
+    {
+        final int direction = this == ASCENDING ? 1 : -1;
+        return new Comparator<T>()
+        {
+            public int compare( T first, T second )
+            {
+                if ( first == null || second == null )
+                {
+                    return first == null ? ( second == null ? 0 : 1 ) : -1;
+                }
+                return direction * first.compareTo( second );
+            }
+        };
+    }
+}
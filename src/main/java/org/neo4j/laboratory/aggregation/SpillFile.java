@@ -0,0 +1,321 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A temporary file of records, each holding the values of a key and the values a
+ * path gave the aggregates. Written and read through a file channel with a direct
+ * buffer. Nodes and relationships are written as their ids, and looked up again
+ * when read.
+ */
+class SpillFile
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final byte NULL = 0;
+    private static final byte NODE = 1;
+    private static final byte RELATIONSHIP = 2;
+    private static final byte LONG = 3;
+    private static final byte INT = 4;
+    private static final byte SHORT = 5;
+    private static final byte BYTE = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte FLOAT = 8;
+    private static final byte BOOLEAN = 9;
+    private static final byte CHAR = 10;
+    private static final byte STRING = 11;
+    private static final byte ARRAY = 12;
+
+    private static final Class<?>[] PRIMITIVE_TYPES = {null, null, null, long.class, int.class, short.class,
+            byte.class, double.class, float.class, boolean.class, char.class, String.class};
+    private static final Class<?>[] BOXED_TYPES = {null, null, null, Long.class, Integer.class, Short.class,
+            Byte.class, Double.class, Float.class, Boolean.class, Character.class, String.class};
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect( BUFFER_SIZE );
+    private int records;
+
+    SpillFile( File directory ) throws IOException
+    {
+        file = File.createTempFile( "aggregation-", ".spill", directory );
+        file.deleteOnExit();
+        randomAccessFile = new RandomAccessFile( file, "rw" );
+        channel = randomAccessFile.getChannel();
+    }
+
+    int records()
+    {
+        return records;
+    }
+
+    void write( Object[] key, Object[] values ) throws IOException
+    {
+        for ( Object value : key )
+        {
+            writeValue( value );
+        }
+        for ( Object value : values )
+        {
+            writeValue( value );
+        }
+        records++;
+    }
+
+    /**
+     * Done writing, starts reading from the beginning.
+     */
+    void rewind() throws IOException
+    {
+        flush();
+        channel.position( 0 );
+        buffer.limit( 0 );
+    }
+
+    /**
+     * Reads a record into the given arrays, which have to be as wide as when written.
+     */
+    void read( Object[] key, Object[] values, GraphDatabaseService graphDb ) throws IOException
+    {
+        for ( int i = 0; i < key.length; i++ )
+        {
+            key[i] = readValue( graphDb );
+        }
+        for ( int i = 0; i < values.length; i++ )
+        {
+            values[i] = readValue( graphDb );
+        }
+    }
+
+    void delete()
+    {
+        try
+        {
+            channel.close();
+            randomAccessFile.close();
+        }
+        catch ( IOException e )
+        {
+            // Deleting it is all that matters
+        }
+        file.delete();
+    }
+
+    private void writeValue( Object value ) throws IOException
+    {
+        if ( value == null )
+        {
+            room( 1 ).put( NULL );
+        }
+        else if ( value instanceof Node )
+        {
+            room( 9 ).put( NODE ).putLong( ( (Node)value ).getId() );
+        }
+        else if ( value instanceof Relationship )
+        {
+            room( 9 ).put( RELATIONSHIP ).putLong( ( (Relationship)value ).getId() );
+        }
+        else if ( value.getClass().isArray() )
+        {
+            byte type = typeOf( value.getClass().getComponentType() );
+            int length = Array.getLength( value );
+            room( 6 ).put( ARRAY ).put( type ).putInt( length );
+            for ( int i = 0; i < length; i++ )
+            {
+                writeScalar( type, Array.get( value, i ) );
+            }
+        }
+        else
+        {
+            byte type = typeOf( value.getClass() );
+            room( 1 ).put( type );
+            writeScalar( type, value );
+        }
+    }
+
+    private void writeScalar( byte type, Object value ) throws IOException
+    {
+        switch ( type )
+        {
+            case LONG:
+                room( 8 ).putLong( (Long)value );
+                break;
+            case INT:
+                room( 4 ).putInt( (Integer)value );
+                break;
+            case SHORT:
+                room( 2 ).putShort( (Short)value );
+                break;
+            case BYTE:
+                room( 1 ).put( (Byte)value );
+                break;
+            case DOUBLE:
+                room( 8 ).putDouble( (Double)value );
+                break;
+            case FLOAT:
+                room( 4 ).putFloat( (Float)value );
+                break;
+            case BOOLEAN:
+                room( 1 ).put( (byte)( (Boolean)value ? 1 : 0 ) );
+                break;
+            case CHAR:
+                room( 2 ).putChar( (Character)value );
+                break;
+            default:
+                byte[] bytes = ( (String)value ).getBytes( UTF8 );
+                room( 4 ).putInt( bytes.length );
+                for ( int written = 0; written < bytes.length; )
+                {
+                    int chunk = Math.min( bytes.length - written, BUFFER_SIZE );
+                    room( chunk ).put( bytes, written, chunk );
+                    written += chunk;
+                }
+        }
+    }
+
+    private static byte typeOf( Class<?> type )
+    {
+        for ( byte i = LONG; i <= STRING; i++ )
+        {
+            if ( PRIMITIVE_TYPES[i] == type || BOXED_TYPES[i] == type )
+            {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException( "Can not spill values of type " + type.getName() );
+    }
+
+    private Object readValue( GraphDatabaseService graphDb ) throws IOException
+    {
+        byte type = available( 1 ).get();
+        switch ( type )
+        {
+            case NULL:
+                return null;
+            case NODE:
+                return graphDb.getNodeById( available( 8 ).getLong() );
+            case RELATIONSHIP:
+                return graphDb.getRelationshipById( available( 8 ).getLong() );
+            case ARRAY:
+                byte componentType = available( 5 ).get();
+                int length = buffer.getInt();
+                Object array = Array.newInstance( PRIMITIVE_TYPES[componentType], length );
+                for ( int i = 0; i < length; i++ )
+                {
+                    Array.set( array, i, readScalar( componentType ) );
+                }
+                return array;
+            default:
+                return readScalar( type );
+        }
+    }
+
+    private Object readScalar( byte type ) throws IOException
+    {
+        switch ( type )
+        {
+            case LONG:
+                return available( 8 ).getLong();
+            case INT:
+                return available( 4 ).getInt();
+            case SHORT:
+                return available( 2 ).getShort();
+            case BYTE:
+                return available( 1 ).get();
+            case DOUBLE:
+                return available( 8 ).getDouble();
+            case FLOAT:
+                return available( 4 ).getFloat();
+            case BOOLEAN:
+                return available( 1 ).get() != 0;
+            case CHAR:
+                return available( 2 ).getChar();
+            case STRING:
+                byte[] bytes = new byte[available( 4 ).getInt()];
+                for ( int read = 0; read < bytes.length; )
+                {
+                    int chunk = Math.min( bytes.length - read, BUFFER_SIZE );
+                    available( chunk ).get( bytes, read, chunk );
+                    read += chunk;
+                }
+                return new String( bytes, UTF8 );
+            default:
+                throw new IOException( "Unknown value type " + type + " in " + file );
+        }
+    }
+
+    /**
+     * @return The buffer, with room for the given number of bytes.
+     */
+    private ByteBuffer room( int bytes ) throws IOException
+    {
+        if ( buffer.remaining() < bytes )
+        {
+            flush();
+        }
+        return buffer;
+    }
+
+    private void flush() throws IOException
+    {
+        buffer.flip();
+        while ( buffer.hasRemaining() )
+        {
+            channel.write( buffer );
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return The buffer, with at least the given number of bytes left to read.
+     */
+    private ByteBuffer available( int bytes ) throws IOException
+    {
+        if ( buffer.remaining() < bytes )
+        {
+            buffer.compact();
+            while ( buffer.position() < bytes )
+            {
+                if ( channel.read( buffer ) == -1 )
+                {
+                    throw new EOFException( "Unexpected end of " + file );
+                }
+            }
+            buffer.flip();
+        }
+        return buffer;
+    }
+}
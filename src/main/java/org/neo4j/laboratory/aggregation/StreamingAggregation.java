@@ -0,0 +1,353 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.traversal.Traverser;
+import org.neo4j.helpers.Predicate;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An aggregation that is declared before the traversal runs. Every path is folded
+ * into the accumulators of its group as soon as the traverser produces it, and is
+ * then dropped, so memory use grows with the number of groups instead of the
+ * number of paths.
+ */
+public abstract class StreamingAggregation<T>
+{
+    private static final int DEFAULT_BATCH_SIZE = 1024;
+    private static final int MAX_PENDING_BATCHES = 64;
+
+    private final GroupingDescription groupingDescription;
+    private final AggregateSpec<?>[] aggregateSpecs;
+
+    StreamingAggregation( GroupingDescription groupingDescription,
+                          AggregateSpec<?>... aggregateSpecs )
+    {
+        this.groupingDescription = groupingDescription;
+        this.aggregateSpecs = aggregateSpecs;
+    }
+
+    static <T> StreamingAggregation<T> single( GroupingDescription groupingDescription,
+                                               final AggregateSpec<T> aggregateSpec )
+    {
+        return new StreamingAggregation<T>( groupingDescription, aggregateSpec )
+        {
+            T result( AggregateRow row )
+            {
+                return row.get( aggregateSpec );
+            }
+        };
+    }
+
+    static StreamingAggregation<AggregateRow> rows( GroupingDescription groupingDescription,
+                                                    AggregateSpec<?>... aggregateSpecs )
+    {
+        return new StreamingAggregation<AggregateRow>( groupingDescription, aggregateSpecs )
+        {
+            AggregateRow result( AggregateRow row )
+            {
+                return row;
+            }
+        };
+    }
+
+    abstract T result( AggregateRow row );
+
+    /**
+     * Runs the traversal and aggregates the paths as they are produced.
+     *
+     * @param traverser The traverser that produces the paths to aggregate.
+     * @return The aggregated value for every group.
+     */
+    public Map<Key, T> aggregateFrom( Traverser traverser )
+    {
+        return results( accumulate( traverser ) );
+    }
+
+    /**
+     * Runs the traversal and aggregates the paths in parallel. The paths are handed out
+     * in batches to the executor, every batch is aggregated into a table of its own, and
+     * the tables are merged in the order the paths were produced. The results are the
+     * same as when aggregating on a single thread.
+     *
+     * @param traverser The traverser that produces the paths to aggregate.
+     * @param executor  The executor that aggregates the batches.
+     * @return The aggregated value for every group.
+     */
+    public Map<Key, T> aggregateFrom( Traverser traverser, ExecutorService executor )
+    {
+        return aggregateFrom( traverser, executor, DEFAULT_BATCH_SIZE );
+    }
+
+    /**
+     * Runs the traversal and aggregates the paths in parallel, in batches of the given size.
+     *
+     * @param traverser The traverser that produces the paths to aggregate.
+     * @param executor  The executor that aggregates the batches.
+     * @param batchSize The number of paths to hand to the executor at a time.
+     * @return The aggregated value for every group.
+     */
+    public Map<Key, T> aggregateFrom( Traverser traverser, ExecutorService executor,
+                                      int batchSize )
+    {
+        GroupedAggregates aggregates = newGroupedAggregates();
+        LinkedList<Future<GroupedAggregates>> pending = new LinkedList<Future<GroupedAggregates>>();
+
+        try
+        {
+            List<Path> batch = new ArrayList<Path>( batchSize );
+            for ( Path path : traverser )
+            {
+                batch.add( path );
+                if ( batch.size() == batchSize )
+                {
+                    pending.add( executor.submit( new BatchTask( batch ) ) );
+                    batch = new ArrayList<Path>( batchSize );
+                }
+
+                if ( pending.size() > MAX_PENDING_BATCHES )
+                {
+                    aggregates.merge( waitFor( pending.removeFirst() ) );
+                }
+            }
+
+            if ( !batch.isEmpty() )
+            {
+                pending.add( executor.submit( new BatchTask( batch ) ) );
+            }
+
+            while ( !pending.isEmpty() )
+            {
+                aggregates.merge( waitFor( pending.removeFirst() ) );
+            }
+        }
+        finally
+        {
+            for ( Future<GroupedAggregates> future : pending )
+            {
+                future.cancel( true );
+            }
+        }
+
+        return results( aggregates );
+    }
+
+    /**
+     * Runs the traversal on this thread and aggregates the paths on the given number of
+     * consumers at the same time. The paths are handed over through a bounded ring, so
+     * reading the graph for the traversal overlaps with reading it for the keys and
+     * values, and the traversal waits when the consumers fall behind. Every consumer
+     * aggregates into a table of its own, and the tables are merged at the end.
+     *
+     * The paths reach the consumers in no particular order, so aggregates that depend
+     * on the order of the values, like join and collect, may differ from run to run.
+     *
+     * @param traverser The traverser that produces the paths to aggregate.
+     * @param executor  The executor that runs the consumers. It must run them on other
+     *                  threads while this one traverses, so it needs at least one free
+     *                  thread, and one per consumer to run them all at once. An executor
+     *                  that runs tasks on the calling thread hangs the aggregation.
+     * @param consumers The number of consumers, at least one.
+     * @param ringSize  The most paths waiting to be aggregated, at least one, rounded up
+     *                  to a power of two.
+     * @return The aggregated value for every group.
+     */
+    public Map<Key, T> aggregatePipelined( Traverser traverser, ExecutorService executor,
+                                           int consumers, int ringSize )
+    {
+        if ( consumers < 1 )
+        {
+            throw new IllegalArgumentException( "At least one consumer is needed" );
+        }
+        if ( ringSize < 1 )
+        {
+            throw new IllegalArgumentException( "The ring must have room for at least one path" );
+        }
+        PathRing ring = new PathRing( ringSize );
+        List<Future<GroupedAggregates>> running = new ArrayList<Future<GroupedAggregates>>( consumers );
+        try
+        {
+            for ( int i = 0; i < consumers; i++ )
+            {
+                running.add( executor.submit( new ConsumerTask( ring ) ) );
+            }
+            for ( Path path : traverser )
+            {
+                if ( !ring.put( path ) )
+                {
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            ring.close();
+        }
+
+        GroupedAggregates aggregates = newGroupedAggregates();
+        for ( Future<GroupedAggregates> future : running )
+        {
+            aggregates.merge( waitFor( future ) );
+        }
+        return results( aggregates );
+    }
+
+    /**
+     * Runs the traversal and aggregates the paths, keeping at most the given number
+     * of groups in memory. The paths of the other groups are written to temporary
+     * files and aggregated afterwards, a part at a time, see ExternalAggregation.
+     *
+     * @param traverser         The traverser that produces the paths to aggregate.
+     * @param graphDb           The database to look up nodes and relationships in, when
+     *                          they are read back from the temporary files.
+     * @param maxGroupsInMemory The most groups to aggregate in memory at a time.
+     * @param spillDirectory    Where to put the temporary files, or null for the default
+     *                          temporary directory.
+     * @return The aggregated value for every group, handed out one group at a time.
+     */
+    public ExternalAggregation<T> aggregateFrom( Traverser traverser, GraphDatabaseService graphDb,
+                                                 int maxGroupsInMemory, File spillDirectory )
+    {
+        return new ExternalAggregation<T>( this, groupingDescription, aggregateSpecs, traverser, graphDb,
+                maxGroupsInMemory, spillDirectory );
+    }
+
+    /**
+     * Makes an evaluator that does this aggregation inside a traversal, instead of
+     * over the paths a traverser hands out, see AggregatingEvaluator.
+     *
+     * @param aggregateWhere Picks the paths to aggregate, like the filter of a
+     *                       traversal picks the paths to return.
+     * @return An evaluator for one traversal.
+     */
+    public AggregatingEvaluator<T> evaluator( Predicate<Path> aggregateWhere )
+    {
+        return new AggregatingEvaluator<T>( this, groupingDescription, aggregateSpecs, aggregateWhere );
+    }
+
+    private GroupedAggregates newGroupedAggregates()
+    {
+        return new GroupedAggregates( groupingDescription, new AggregatePlan( aggregateSpecs ) );
+    }
+
+    private GroupedAggregates accumulate( Iterable<Path> paths )
+    {
+        GroupedAggregates aggregates = newGroupedAggregates();
+        PathAccess pathAccess = new PathAccess( new PropertyMemo() );
+        for ( Path path : paths )
+        {
+            aggregates.accumulate( pathAccess.reset( path ) );
+        }
+        return aggregates;
+    }
+
+    private static GroupedAggregates waitFor( Future<GroupedAggregates> future )
+    {
+        try
+        {
+            return future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while waiting for the aggregation", e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof RuntimeException )
+            {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        }
+    }
+
+    Map<Key, T> results( GroupedAggregates aggregates )
+    {
+        Map<Key, AggregateRow> rows = aggregates.results();
+        Map<Key, T> resultMap = new HashMap<Key, T>( rows.size() * 2 );
+        for ( Map.Entry<Key, AggregateRow> entry : rows.entrySet() )
+        {
+            resultMap.put( entry.getKey(), result( entry.getValue() ) );
+        }
+        return resultMap;
+    }
+
+    private class BatchTask implements Callable<GroupedAggregates>
+    {
+        private final List<Path> paths;
+
+        BatchTask( List<Path> paths )
+        {
+            this.paths = paths;
+        }
+
+        public GroupedAggregates call()
+        {
+            return accumulate( paths );
+        }
+    }
+
+    private class ConsumerTask implements Callable<GroupedAggregates>
+    {
+        private final PathRing ring;
+
+        ConsumerTask( PathRing ring )
+        {
+            this.ring = ring;
+        }
+
+        public GroupedAggregates call()
+        {
+            GroupedAggregates aggregates = newGroupedAggregates();
+            PathAccess pathAccess = new PathAccess( new PropertyMemo() );
+            boolean drained = false;
+            try
+            {
+                for ( Path path = ring.take(); path != null; path = ring.take() )
+                {
+                    aggregates.accumulate( pathAccess.reset( path ) );
+                }
+                drained = true;
+            }
+            finally
+            {
+                if ( !drained )
+                {
+                    ring.abort();
+                }
+            }
+            return aggregates;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the best groups seen so far in a bounded heap, with the worst of them at
+ * the top so it can be pushed out when a better group comes along. Groups that
+ * are equally good are ordered by their keys, so the result does not depend on
+ * the order the groups were seen in.
+ */
+class TopGroups<T>
+{
+    private final Comparator<? super T> order;
+    private final Key[] keys;
+    private final Object[] values;
+    private int size;
+
+    TopGroups( int limit, Comparator<? super T> order )
+    {
+        if ( limit < 0 )
+        {
+            throw new IllegalArgumentException( "The limit can not be negative" );
+        }
+        this.order = order;
+        this.keys = new Key[limit];
+        this.values = new Object[limit];
+    }
+
+    void offer( Key key, T value )
+    {
+        if ( size < keys.length )
+        {
+            keys[size] = key;
+            values[size] = value;
+            siftUp( size++ );
+        }
+        else if ( size > 0 && compare( key, value, 0 ) < 0 )
+        {
+            keys[0] = key;
+            values[0] = value;
+            siftDown( 0 );
+        }
+    }
+
+    /**
+     * @return The groups, best first. The heap is emptied.
+     */
+    @SuppressWarnings( "unchecked" )
+    Map<Key, T> result()
+    {
+        int count = size;
+        Key[] sortedKeys = new Key[count];
+        Object[] sortedValues = new Object[count];
+        for ( int i = count - 1; i >= 0; i-- )
+        {
+            sortedKeys[i] = keys[0];
+            sortedValues[i] = values[0];
+            size--;
+            keys[0] = keys[size];
+            values[0] = values[size];
+            keys[size] = null;
+            values[size] = null;
+            siftDown( 0 );
+        }
+
+        Map<Key, T> result = new LinkedHashMap<Key, T>( count * 2 );
+        for ( int i = 0; i < count; i++ )
+        {
+            result.put( sortedKeys[i], (T)sortedValues[i] );
+        }
+        return result;
+    }
+
+    /**
+     * Compares a group with the one at a position in the heap. Negative means the
+     * group comes before, that is, it is better.
+     */
+    @SuppressWarnings( "unchecked" )
+    private int compare( Key key, Object value, int position )
+    {
+        int result = order.compare( (T)value, (T)values[position] );
+        return result != 0 ? result : KeyComparator.INSTANCE.compare( key, keys[position] );
+    }
+
+    private void siftUp( int position )
+    {
+        Key key = keys[position];
+        Object value = values[position];
+        while ( position > 0 )
+        {
+            int parent = ( position - 1 ) >>> 1;
+            if ( compare( key, value, parent ) <= 0 )
+            {
+                break;
+            }
+            keys[position] = keys[parent];
+            values[position] = values[parent];
+            position = parent;
+        }
+        keys[position] = key;
+        values[position] = value;
+    }
+
+    private void siftDown( int position )
+    {
+        if ( size == 0 )
+        {
+            return;
+        }
+        Key key = keys[position];
+        Object value = values[position];
+        int half = size >>> 1;
+        while ( position < half )
+        {
+            int child = 2 * position + 1;
+            if ( child + 1 < size && compare( keys[child + 1], values[child + 1], child ) > 0 )
+            {
+                child++;
+            }
+            if ( compare( key, value, child ) >= 0 )
+            {
+                break;
+            }
+            keys[position] = keys[child];
+            values[position] = values[child];
+            position = child;
+        }
+        keys[position] = key;
+        values[position] = value;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+/**
+ * The state of one aggregate for many groups at once. Groups are numbered from 0
+ * and up, and the state is kept in arrays indexed by group number, so a group costs
+ * a few array slots instead of an object of its own.
+ */
+public interface AggregateColumn<T>
+{
+    /**
+     * Makes room for a new group. Groups are added in order, starting with 0.
+     */
+    void addGroup( int group );
+
+    void accumulate( int group, Object value );
+
+    /**
+     * Adds the state of a group in another column of the same kind to a group in
+     * this column, as if this group had also seen all the values the other has seen.
+     */
+    void merge( int group, AggregateColumn<T> other, int otherGroup );
+
+    T result( int group );
+}
@@ -24,5 +24,11 @@ public interface AggregateFunction<T>
 {
     void accumulate(Object obj);
 
+    /**
+     * Adds the state of another function of the same kind to this one, as if this
+     * function had also seen all the values the other one has seen.
+     */
+    void merge( AggregateFunction<T> other );
+
     T result();
 }
@@ -26,5 +26,11 @@ public interface AggregateNodeFunction<T>
 {
     void accumulate( Node obj );
 
+    /**
+     * Adds the state of another function of the same kind to this one, as if this
+     * function had also seen all the nodes the other one has seen.
+     */
+    void merge( AggregateNodeFunction<T> other );
+
     T result();
 }
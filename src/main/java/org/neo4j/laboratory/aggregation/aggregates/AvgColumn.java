@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+import java.util.Arrays;
+
+public class AvgColumn implements DoubleAggregateColumn<Double>, RetractableColumn<Double>
+{
+    private double[] totals = new double[16];
+    private double[] compensations = new double[16];
+    private long[] counts = new long[16];
+
+    public void addGroup( int group )
+    {
+        if ( group == totals.length )
+        {
+            totals = Arrays.copyOf( totals, group * 2 );
+            compensations = Arrays.copyOf( compensations, group * 2 );
+            counts = Arrays.copyOf( counts, group * 2 );
+        }
+    }
+
+    public void accumulate( int group, Object value )
+    {
+        accumulate( group, ( (Number)value ).doubleValue() );
+    }
+
+    public void accumulate( int group, double value )
+    {
+        counts[group]++;
+        CompensatedSum.add( totals, compensations, group, value );
+    }
+
+    public void retract( int group, Object value )
+    {
+        counts[group]--;
+        CompensatedSum.add( totals, compensations, group, -( (Number)value ).doubleValue() );
+    }
+
+    public void merge( int group, AggregateColumn<Double> other, int otherGroup )
+    {
+        AvgColumn otherAvg = (AvgColumn)other;
+        counts[group] += otherAvg.counts[otherGroup];
+        CompensatedSum.merge( totals, compensations, group,
+                otherAvg.totals[otherGroup], otherAvg.compensations[otherGroup] );
+    }
+
+    public Double result( int group )
+    {
+        if ( counts[group] == 0 )
+        {
+            return null;
+        }
+
+        return CompensatedSum.value( totals, compensations, group ) / (double)counts[group];
+    }
+}
@@ -20,10 +20,15 @@
 
 package org.neo4j.laboratory.aggregation.aggregates;
 
-public class AvgFactory implements AggregateFunctionFactory<Double>
+public class AvgFactory implements AggregateFunctionFactory<Double>, AggregateColumnFactory<Double>
 {
     public AggregateFunction<Double> newGrouping()
     {
         return new AvgFunction();
     }
+
+    public AggregateColumn<Double> newColumn()
+    {
+        return new AvgColumn();
+    }
 }
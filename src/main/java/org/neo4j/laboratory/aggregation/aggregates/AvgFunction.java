@@ -20,15 +20,33 @@
 
 package org.neo4j.laboratory.aggregation.aggregates;
 
-public class AvgFunction implements AggregateFunction<Double>
+public class AvgFunction implements DoubleAggregateFunction<Double>
 {
-    private double totalSoFar = 0;
-    private int numberOfValues = 0;
+    private final double[] total = new double[1];
+    private final double[] compensation = new double[1];
+    private long numberOfValues = 0;
 
     public void accumulate( Object obj )
+    {
+        accumulate( ( (Number)obj ).doubleValue() );
+    }
+
+    public void accumulate( double value )
     {
         numberOfValues++;
-        totalSoFar += ((Number)obj).doubleValue();
+        CompensatedSum.add( total, compensation, 0, value );
+    }
+
+    public void merge( AggregateFunction<Double> other )
+    {
+        AvgFunction otherAvg = (AvgFunction)other;
+        numberOfValues += otherAvg.numberOfValues;
+        CompensatedSum.merge( total, compensation, 0, otherAvg.total[0], otherAvg.compensation[0] );
+    }
+
+    public double doubleResult()
+    {
+        return CompensatedSum.value( total, compensation, 0 ) / (double)numberOfValues;
     }
 
     public Double result()
@@ -38,6 +56,6 @@ public class AvgFunction implements AggregateFunction<Double>
             return null;
         }
 
-        return totalSoFar / (double)numberOfValues;
+        return doubleResult();
     }
 }
@@ -33,6 +33,11 @@ public class CollectFunction implements AggregateNodeFunction<List<Node>>
         collection.add( obj );
     }
 
+    public void merge( AggregateNodeFunction<List<Node>> other )
+    {
+        collection.addAll( ( (CollectFunction)other ).collection );
+    }
+
     public List<Node> result()
     {
         return collection;
@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+import java.util.Arrays;
+
+public abstract class ComparableColumn implements DoubleAggregateColumn<Double>
+{
+    private boolean[] used = new boolean[16];
+    private double[] bestSoFar = new double[16];
+
+    public void addGroup( int group )
+    {
+        if ( group == used.length )
+        {
+            used = Arrays.copyOf( used, group * 2 );
+            bestSoFar = Arrays.copyOf( bestSoFar, group * 2 );
+        }
+    }
+
+    public void accumulate( int group, Object value )
+    {
+        accumulate( group, ( (Number)value ).doubleValue() );
+    }
+
+    public void accumulate( int group, double value )
+    {
+        if ( !used[group] || betterValue( bestSoFar[group], value ) )
+        {
+            bestSoFar[group] = value;
+            used[group] = true;
+        }
+    }
+
+    public void merge( int group, AggregateColumn<Double> other, int otherGroup )
+    {
+        ComparableColumn otherColumn = (ComparableColumn)other;
+        if ( otherColumn.used[otherGroup] )
+        {
+            accumulate( group, otherColumn.bestSoFar[otherGroup] );
+        }
+    }
+
+    protected abstract boolean betterValue( double bestSoFar, double value );
+
+    public Double result( int group )
+    {
+        return bestSoFar[group];
+    }
+}
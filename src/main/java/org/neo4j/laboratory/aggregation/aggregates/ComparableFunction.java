@@ -20,14 +20,18 @@
 
 package org.neo4j.laboratory.aggregation.aggregates;
 
-public abstract class ComparableFunction implements AggregateFunction<Double>
+public abstract class ComparableFunction implements DoubleAggregateFunction<Double>
 {
     private boolean used = false;
     protected double bestSoFar;
 
     public void accumulate( Object obj )
     {
-        double value = ((Number)obj).doubleValue();
+        accumulate( ((Number)obj).doubleValue() );
+    }
+
+    public void accumulate( double value )
+    {
         if ( !used || betterValue( value ) )
         {
             bestSoFar = value;
@@ -35,8 +39,23 @@ public abstract class ComparableFunction implements AggregateFunction<Double>
         }
     }
 
+    public void merge( AggregateFunction<Double> other )
+    {
+        ComparableFunction otherFunction = (ComparableFunction)other;
+        if ( otherFunction.used && ( !used || betterValue( otherFunction.bestSoFar ) ) )
+        {
+            bestSoFar = otherFunction.bestSoFar;
+            used = true;
+        }
+    }
+
     protected abstract boolean betterValue( double value );
 
+    public double doubleResult()
+    {
+        return bestSoFar;
+    }
+
     public Double result()
     {
         return bestSoFar;
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+/**
+ * Compensated summation, in the Kahan-Babuska form by Neumaier. Next to the sum, a
+ * compensation keeps the low order bits that were lost when adding, so that adding
+ * many values, or values of very different size, does not drift. The state is kept
+ * in two arrays indexed by group, so columns can use it without an object per group.
+ */
+final class CompensatedSum
+{
+    private CompensatedSum()
+    {
+    }
+
+    static void add( double[] sums, double[] compensations, int index, double value )
+    {
+        double sum = sums[index];
+        double total = sum + value;
+        if ( Math.abs( sum ) >= Math.abs( value ) )
+        {
+            compensations[index] += ( sum - total ) + value;
+        }
+        else
+        {
+            compensations[index] += ( value - total ) + sum;
+        }
+        sums[index] = total;
+    }
+
+    static void merge( double[] sums, double[] compensations, int index, double otherSum, double otherCompensation )
+    {
+        add( sums, compensations, index, otherSum );
+        compensations[index] += otherCompensation;
+    }
+
+    static double value( double[] sums, double[] compensations, int index )
+    {
+        return sums[index] + compensations[index];
+    }
+}
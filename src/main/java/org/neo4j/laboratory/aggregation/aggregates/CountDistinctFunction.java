@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class CountDistinctFunction implements AggregateFunction<Long>
+{
+    private final Set<Object> values = new HashSet<Object>();
+
+    public void accumulate( Object obj )
+    {
+        values.add( distinct( obj ) );
+    }
+
+    public void merge( AggregateFunction<Long> other )
+    {
+        values.addAll( ( (CountDistinctFunction)other ).values );
+    }
+
+    public Long result()
+    {
+        return (long)values.size();
+    }
+
+    /**
+     * A value that is equal to another exactly when the property values are the same,
+     * like HyperLogLog hashes them: integral numbers as longs, floats as doubles and
+     * arrays by their contents.
+     */
+    static Object distinct( Object value )
+    {
+        if ( value instanceof Integer || value instanceof Short || value instanceof Byte )
+        {
+            return ( (Number)value ).longValue();
+        }
+        if ( value instanceof Float )
+        {
+            return ( (Float)value ).doubleValue();
+        }
+        if ( value instanceof Object[] )
+        {
+            return Arrays.asList( (Object[])value );
+        }
+        if ( value != null && value.getClass().isArray() )
+        {
+            int length = Array.getLength( value );
+            List<Object> elements = new ArrayList<Object>( length );
+            for ( int i = 0; i < length; i++ )
+            {
+                elements.add( distinct( Array.get( value, i ) ) );
+            }
+            return elements;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+import org.neo4j.graphdb.Node;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class CountDistinctNodesFunction implements AggregateNodeFunction<Long>
+{
+    private final Set<Long> ids = new HashSet<Long>();
+
+    public void accumulate( Node obj )
+    {
+        ids.add( obj.getId() );
+    }
+
+    public void merge( AggregateNodeFunction<Long> other )
+    {
+        ids.addAll( ( (CountDistinctNodesFunction)other ).ids );
+    }
+
+    public Long result()
+    {
+        return (long)ids.size();
+    }
+}
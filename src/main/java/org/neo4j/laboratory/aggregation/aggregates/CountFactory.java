@@ -20,10 +20,15 @@
 
 package org.neo4j.laboratory.aggregation.aggregates;
 
-public class CountFactory implements AggregateNodeFunctionFactory<Integer>
+public class CountFactory implements AggregateNodeFunctionFactory<Integer>, AggregateColumnFactory<Integer>
 {
     public AggregateNodeFunction<Integer> newGrouping()
     {
         return new CountFunction();
     }
+
+    public AggregateColumn<Integer> newColumn()
+    {
+        return new CountColumn();
+    }
 }
@@ -31,6 +31,11 @@ public class CountFunction implements AggregateNodeFunction<Integer>
         count++;
     }
 
+    public void merge( AggregateNodeFunction<Integer> other )
+    {
+        count += ( (CountFunction)other ).count;
+    }
+
     public Integer result()
     {
         return count;
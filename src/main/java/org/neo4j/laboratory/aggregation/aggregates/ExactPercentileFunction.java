@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+import java.util.Arrays;
+
+public class ExactPercentileFunction implements DoubleAggregateFunction<Double>
+{
+    private final double fraction;
+    private double[] values = new double[8];
+    private int count = 0;
+
+    public ExactPercentileFunction( double fraction )
+    {
+        this.fraction = fraction;
+    }
+
+    public void accumulate( Object obj )
+    {
+        accumulate( ( (Number)obj ).doubleValue() );
+    }
+
+    public void accumulate( double value )
+    {
+        if ( count == values.length )
+        {
+            values = Arrays.copyOf( values, count * 2 );
+        }
+        values[count++] = value;
+    }
+
+    public void merge( AggregateFunction<Double> other )
+    {
+        ExactPercentileFunction otherPercentile = (ExactPercentileFunction)other;
+        for ( int i = 0; i < otherPercentile.count; i++ )
+        {
+            accumulate( otherPercentile.values[i] );
+        }
+    }
+
+    public double doubleResult()
+    {
+        if ( count == 0 )
+        {
+            return Double.NaN;
+        }
+
+        Arrays.sort( values, 0, count );
+        int rank = (int)Math.max( 1, Math.ceil( fraction * count ) );
+        return values[rank - 1];
+    }
+
+    public Double result()
+    {
+        return count == 0 ? null : doubleResult();
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+import java.util.Arrays;
+
+/**
+ * A HyperLogLog sketch, estimating how many distinct values it has seen. It keeps
+ * 2^precision one byte registers, so a precision of 12 takes 4KB and gives a
+ * standard error of about 1.6%. Two sketches of the same precision can be merged
+ * into one that has seen the values of both.
+ */
+class HyperLogLog
+{
+    static final int MIN_PRECISION = 4;
+    static final int MAX_PRECISION = 16;
+
+    private final int precision;
+    private final byte[] registers;
+
+    HyperLogLog( int precision )
+    {
+        checkPrecision( precision );
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    static void checkPrecision( int precision )
+    {
+        if ( precision < MIN_PRECISION || precision > MAX_PRECISION )
+        {
+            throw new IllegalArgumentException( "The precision has to be between " + MIN_PRECISION +
+                    " and " + MAX_PRECISION + ", but was " + precision );
+        }
+    }
+
+    void add( long hash )
+    {
+        int register = (int)( hash >>> ( 64 - precision ) );
+        long rest = hash << precision;
+        int rank = rest == 0 ? 64 - precision + 1 : Long.numberOfLeadingZeros( rest ) + 1;
+        if ( rank > registers[register] )
+        {
+            registers[register] = (byte)rank;
+        }
+    }
+
+    void merge( HyperLogLog other )
+    {
+        if ( other.precision != precision )
+        {
+            throw new IllegalArgumentException( "Can not merge sketches of different precision" );
+        }
+        for ( int i = 0; i < registers.length; i++ )
+        {
+            if ( other.registers[i] > registers[i] )
+            {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    long estimate()
+    {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for ( byte register : registers )
+        {
+            sum += 1.0 / ( 1L << register );
+            if ( register == 0 )
+            {
+                zeros++;
+            }
+        }
+
+        double estimate = alpha( m ) * m * m / sum;
+        if ( estimate <= 2.5 * m && zeros > 0 )
+        {
+            // Few values seen, linear counting on the empty registers is more exact
+            estimate = m * Math.log( (double)m / zeros );
+        }
+        return Math.round( estimate );
+    }
+
+    private static double alpha( int m )
+    {
+        switch ( m )
+        {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / ( 1 + 1.079 / m );
+        }
+    }
+
+    /**
+     * Spreads the bits of a value, so that values which are close, like node ids,
+     * end up far apart.
+     */
+    static long hash( long value )
+    {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * A 64 bit hash of a property value. Integral numbers hash by their value, so an
+     * int and a long that are equal count as the same value.
+     */
+    static long hash( Object value )
+    {
+        if ( value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte )
+        {
+            return hash( ( (Number)value ).longValue() );
+        }
+        if ( value instanceof Double || value instanceof Float )
+        {
+            return hash( Double.doubleToLongBits( ( (Number)value ).doubleValue() ) );
+        }
+        if ( value instanceof String )
+        {
+            String string = (String)value;
+            long hash = 1125899906842597L;
+            for ( int i = 0; i < string.length(); i++ )
+            {
+                hash = 31 * hash + string.charAt( i );
+            }
+            return hash( hash );
+        }
+        if ( value != null && value.getClass().isArray() )
+        {
+            return hash( (long)Arrays.deepHashCode( new Object[]{value} ) );
+        }
+        return hash( (long)( value == null ? 0 : value.hashCode() ) );
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+import java.util.Arrays;
+
+/**
+ * Joins the strings of every group. The strings are kept as codes in a dictionary
+ * shared by all groups, and only turned back into strings when a result is asked
+ * for, so a string that is joined in many places is stored once.
+ */
+public class JoinColumn implements AggregateColumn<String>
+{
+    private static final int[] NO_CODES = new int[0];
+
+    private final String separator;
+    private final ValueDictionary dictionary = new ValueDictionary();
+    private int[][] codes = new int[16][];
+    private int[] counts = new int[16];
+
+    public JoinColumn( String separator )
+    {
+        this.separator = separator;
+    }
+
+    public void addGroup( int group )
+    {
+        if ( group == codes.length )
+        {
+            codes = Arrays.copyOf( codes, group * 2 );
+            counts = Arrays.copyOf( counts, group * 2 );
+        }
+        codes[group] = NO_CODES;
+    }
+
+    public void accumulate( int group, Object value )
+    {
+        add( group, dictionary.encode( (String)value ) );
+    }
+
+    private void add( int group, int code )
+    {
+        int count = counts[group];
+        if ( count == codes[group].length )
+        {
+            codes[group] = Arrays.copyOf( codes[group], Math.max( 4, count * 2 ) );
+        }
+        codes[group][count] = code;
+        counts[group] = count + 1;
+    }
+
+    public void merge( int group, AggregateColumn<String> other, int otherGroup )
+    {
+        JoinColumn otherColumn = (JoinColumn)other;
+        int[] otherCodes = otherColumn.codes[otherGroup];
+        for ( int i = 0; i < otherColumn.counts[otherGroup]; i++ )
+        {
+            add( group, dictionary.encode( otherColumn.dictionary.decode( otherCodes[i] ) ) );
+        }
+    }
+
+    public String result( int group )
+    {
+        StringBuilder result = new StringBuilder();
+        for ( int i = 0; i < counts[group]; i++ )
+        {
+            if ( i > 0 )
+            {
+                result.append( separator );
+            }
+            result.append( (String)dictionary.decode( codes[group][i] ) );
+        }
+        return result.toString();
+    }
+}
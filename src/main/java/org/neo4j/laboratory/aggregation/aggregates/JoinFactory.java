@@ -20,7 +20,7 @@
 
 package org.neo4j.laboratory.aggregation.aggregates;
 
-public class JoinFactory implements AggregateFunctionFactory<String>
+public class JoinFactory implements AggregateFunctionFactory<String>, AggregateColumnFactory<String>
 {
     private String separator;
 
@@ -33,4 +33,9 @@ public class JoinFactory implements AggregateFunctionFactory<String>
     {
         return new JoinFunction(separator);
     }
+
+    public AggregateColumn<String> newColumn()
+    {
+        return new JoinColumn( separator );
+    }
 }
@@ -44,6 +44,25 @@ public class JoinFunction implements AggregateFunction<String>
         resultSoFar.append( (String)obj );
     }
 
+    public void merge( AggregateFunction<String> other )
+    {
+        JoinFunction otherJoin = (JoinFunction)other;
+        if ( !otherJoin.used )
+        {
+            return;
+        }
+
+        if ( used )
+        {
+            resultSoFar.append( separator );
+        } else
+        {
+            used = true;
+        }
+
+        resultSoFar.append( otherJoin.resultSoFar );
+    }
+
     public String result()
     {
         return resultSoFar.toString();
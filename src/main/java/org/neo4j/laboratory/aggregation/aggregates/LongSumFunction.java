@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+public class LongSumFunction implements LongAggregateFunction<Long>
+{
+    private long valueSoFar = 0;
+
+    public void accumulate( Object obj )
+    {
+        valueSoFar += integral( obj );
+    }
+
+    public void accumulate( long value )
+    {
+        valueSoFar += value;
+    }
+
+    public void merge( AggregateFunction<Long> other )
+    {
+        valueSoFar += ( (LongSumFunction)other ).valueSoFar;
+    }
+
+    public long longResult()
+    {
+        return valueSoFar;
+    }
+
+    public Long result()
+    {
+        return valueSoFar;
+    }
+
+    /**
+     * @return The value as a long, if it is a Long, Integer, Short or Byte.
+     */
+    static long integral( Object value )
+    {
+        if ( value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte )
+        {
+            return ( (Number)value ).longValue();
+        }
+        throw new IllegalArgumentException( "LongSum only sums integral numbers, but got a " +
+                ( value == null ? "null" : value.getClass().getSimpleName() ) + ", use Sum instead" );
+    }
+}
@@ -20,10 +20,15 @@
 
 package org.neo4j.laboratory.aggregation.aggregates;
 
-public class MaxFactory implements AggregateFunctionFactory<Double>
+public class MaxFactory implements AggregateFunctionFactory<Double>, AggregateColumnFactory<Double>
 {
     public AggregateFunction<Double> newGrouping()
     {
         return new MaxFunction();
     }
+
+    public AggregateColumn<Double> newColumn()
+    {
+        return new MaxColumn();
+    }
 }
@@ -20,10 +20,15 @@
 
 package org.neo4j.laboratory.aggregation.aggregates;
 
-public class MinFactory implements AggregateFunctionFactory<Double>
+public class MinFactory implements AggregateFunctionFactory<Double>, AggregateColumnFactory<Double>
 {
     public AggregateFunction<Double> newGrouping()
     {
         return new MinFunction();
     }
+
+    public AggregateColumn<Double> newColumn()
+    {
+        return new MinColumn();
+    }
 }
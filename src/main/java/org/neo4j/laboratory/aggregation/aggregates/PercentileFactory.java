@@ -0,0 +1,47 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+public class PercentileFactory implements AggregateFunctionFactory<Double>
+{
+    private final double fraction;
+    private final int sketchSize;
+
+    public PercentileFactory( double fraction, double error )
+    {
+        this.fraction = checkFraction( fraction );
+        this.sketchSize = QuantileSketch.sizeFor( error );
+    }
+
+    static double checkFraction( double fraction )
+    {
+        if ( !( fraction >= 0 && fraction <= 1 ) )
+        {
+            throw new IllegalArgumentException( "The percentile has to be between 0 and 1, but was " + fraction );
+        }
+        return fraction;
+    }
+
+    public AggregateFunction<Double> newGrouping()
+    {
+        return new PercentileFunction( fraction, sketchSize );
+    }
+}
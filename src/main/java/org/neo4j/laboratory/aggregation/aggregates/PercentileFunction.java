@@ -0,0 +1,58 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+public class PercentileFunction implements DoubleAggregateFunction<Double>
+{
+    private final double fraction;
+    private final QuantileSketch sketch;
+
+    public PercentileFunction( double fraction, int sketchSize )
+    {
+        this.fraction = fraction;
+        this.sketch = new QuantileSketch( sketchSize );
+    }
+
+    public void accumulate( Object obj )
+    {
+        sketch.add( ( (Number)obj ).doubleValue() );
+    }
+
+    public void accumulate( double value )
+    {
+        sketch.add( value );
+    }
+
+    public void merge( AggregateFunction<Double> other )
+    {
+        sketch.merge( ( (PercentileFunction)other ).sketch );
+    }
+
+    public double doubleResult()
+    {
+        return sketch.isEmpty() ? Double.NaN : sketch.quantile( fraction );
+    }
+
+    public Double result()
+    {
+        return sketch.isEmpty() ? null : sketch.quantile( fraction );
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * A KLL quantile sketch. Values are kept in levels, where a value on level h stands
+ * for 2^h of the values seen. When a level is full it is sorted and every other
+ * value is moved up a level, the rest are thrown away. The levels get smaller the
+ * further down they are, so the whole sketch holds less than 3k values, however many
+ * values it has seen. Until the first level fills up the sketch is exact.
+ *
+ * The rank error is about 3/k. Sketches with the same k can be merged.
+ */
+class QuantileSketch
+{
+    private static final int MIN_CAPACITY = 8;
+    private static final long SEED = 0x5DEECE66DL;
+
+    private final int k;
+    private double[][] levels = new double[1][];
+    private int[] sizes = new int[1];
+    private final Random random = new Random( SEED );
+
+    QuantileSketch( int k )
+    {
+        this.k = k;
+        levels[0] = new double[k];
+    }
+
+    /**
+     * @return The k that gives a rank error of about the given fraction.
+     */
+    static int sizeFor( double error )
+    {
+        if ( !( error > 0 && error < 1 ) )
+        {
+            throw new IllegalArgumentException( "The error has to be between 0 and 1, but was " + error );
+        }
+        return Math.max( MIN_CAPACITY, (int)Math.ceil( 3.0 / error ) );
+    }
+
+    void add( double value )
+    {
+        append( 0, value );
+        if ( sizes[0] >= capacity( 0 ) )
+        {
+            compress();
+        }
+    }
+
+    void merge( QuantileSketch other )
+    {
+        if ( other.k != k )
+        {
+            throw new IllegalArgumentException( "Can not merge sketches of different size" );
+        }
+        for ( int level = 0; level < other.levels.length; level++ )
+        {
+            for ( int i = 0; i < other.sizes[level]; i++ )
+            {
+                append( level, other.levels[level][i] );
+            }
+        }
+        compress();
+    }
+
+    boolean isEmpty()
+    {
+        for ( int size : sizes )
+        {
+            if ( size > 0 )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param fraction Between 0 and 1.
+     * @return The smallest kept value with at least the given fraction of the
+     *         values at or below it.
+     */
+    double quantile( double fraction )
+    {
+        int count = 0;
+        for ( int size : sizes )
+        {
+            count += size;
+        }
+
+        double[] values = new double[count];
+        long[] weights = new long[count];
+        long totalWeight = 0;
+        int index = 0;
+        for ( int level = 0; level < levels.length; level++ )
+        {
+            for ( int i = 0; i < sizes[level]; i++ )
+            {
+                values[index] = levels[level][i];
+                weights[index++] = 1L << level;
+            }
+            totalWeight += (long)sizes[level] << level;
+        }
+
+        sortTogether( values, weights );
+        double rank = Math.max( 1, Math.ceil( fraction * totalWeight ) );
+        long weightSoFar = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            weightSoFar += weights[i];
+            if ( weightSoFar >= rank )
+            {
+                return values[i];
+            }
+        }
+        return values[count - 1];
+    }
+
+    private int capacity( int level )
+    {
+        int depth = levels.length - 1 - level;
+        return Math.max( MIN_CAPACITY, (int)Math.ceil( k * Math.pow( 2.0 / 3.0, depth ) ) );
+    }
+
+    private void append( int level, double value )
+    {
+        while ( level >= levels.length )
+        {
+            int newLevel = levels.length;
+            levels = Arrays.copyOf( levels, newLevel + 1 );
+            sizes = Arrays.copyOf( sizes, newLevel + 1 );
+            levels[newLevel] = new double[MIN_CAPACITY];
+        }
+        if ( sizes[level] == levels[level].length )
+        {
+            levels[level] = Arrays.copyOf( levels[level], sizes[level] * 2 );
+        }
+        levels[level][sizes[level]++] = value;
+    }
+
+    private void compress()
+    {
+        for ( int level = 0; level < levels.length; level++ )
+        {
+            if ( sizes[level] >= capacity( level ) )
+            {
+                compact( level );
+            }
+        }
+    }
+
+    /**
+     * Moves every other value of a level up one level. Which half is kept is picked
+     * at random, so the errors tend to cancel out. The random numbers are seeded, so
+     * the same values give the same result every time. With an odd number of values,
+     * the largest one stays behind.
+     */
+    private void compact( int level )
+    {
+        double[] items = levels[level];
+        int size = sizes[level];
+        Arrays.sort( items, 0, size );
+
+        int pairs = size / 2;
+        int offset = random.nextBoolean() ? 1 : 0;
+        double[] promoted = new double[pairs];
+        for ( int i = 0; i < pairs; i++ )
+        {
+            promoted[i] = items[2 * i + offset];
+        }
+
+        if ( size % 2 == 1 )
+        {
+            items[0] = items[size - 1];
+            sizes[level] = 1;
+        }
+        else
+        {
+            sizes[level] = 0;
+        }
+
+        for ( double value : promoted )
+        {
+            append( level + 1, value );
+        }
+    }
+
+    private static void sortTogether( double[] values, long[] weights )
+    {
+        Integer[] order = new Integer[values.length];
+        for ( int i = 0; i < order.length; i++ )
+        {
+            order[i] = i;
+        }
+        final double[] keys = values.clone();
+        Arrays.sort( order, new Comparator<Integer>()
+        {
+            public int compare( Integer first, Integer second )
+            {
+                return Double.compare( keys[first], keys[second] );
+            }
+        } );
+
+        long[] weightCopy = weights.clone();
+        for ( int i = 0; i < order.length; i++ )
+        {
+            values[i] = keys[order[i]];
+            weights[i] = weightCopy[order[i]];
+        }
+    }
+}
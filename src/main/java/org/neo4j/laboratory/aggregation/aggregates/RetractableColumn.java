@@ -0,0 +1,34 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+/**
+ * A column that can take a value back out of a group, as if the group had never
+ * seen it. Aggregates like Min and Max can not do this, since they do not know the
+ * runner up, and have to be calculated again from the values that are left.
+ */
+public interface RetractableColumn<T> extends AggregateColumn<T>
+{
+    /**
+     * Takes back a value that was earlier given to accumulate for the same group.
+     */
+    void retract( int group, Object value );
+}
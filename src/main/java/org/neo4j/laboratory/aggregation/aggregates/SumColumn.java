@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+import java.util.Arrays;
+
+public class SumColumn implements DoubleAggregateColumn<Double>, RetractableColumn<Double>
+{
+    private double[] sums = new double[16];
+    private double[] compensations = new double[16];
+
+    public void addGroup( int group )
+    {
+        if ( group == sums.length )
+        {
+            sums = Arrays.copyOf( sums, group * 2 );
+            compensations = Arrays.copyOf( compensations, group * 2 );
+        }
+    }
+
+    public void accumulate( int group, Object value )
+    {
+        accumulate( group, ( (Number)value ).doubleValue() );
+    }
+
+    public void accumulate( int group, double value )
+    {
+        CompensatedSum.add( sums, compensations, group, value );
+    }
+
+    public void retract( int group, Object value )
+    {
+        CompensatedSum.add( sums, compensations, group, -( (Number)value ).doubleValue() );
+    }
+
+    public void merge( int group, AggregateColumn<Double> other, int otherGroup )
+    {
+        SumColumn otherSum = (SumColumn)other;
+        CompensatedSum.merge( sums, compensations, group,
+                otherSum.sums[otherGroup], otherSum.compensations[otherGroup] );
+    }
+
+    public Double result( int group )
+    {
+        return CompensatedSum.value( sums, compensations, group );
+    }
+}
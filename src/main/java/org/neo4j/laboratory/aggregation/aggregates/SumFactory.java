@@ -20,10 +20,15 @@
 
 package org.neo4j.laboratory.aggregation.aggregates;
 
-public class SumFactory implements AggregateFunctionFactory<Double>
+public class SumFactory implements AggregateFunctionFactory<Double>, AggregateColumnFactory<Double>
 {
     public AggregateFunction<Double> newGrouping()
     {
         return new SumFunction();
     }
+
+    public AggregateColumn<Double> newColumn()
+    {
+        return new SumColumn();
+    }
 }
@@ -20,18 +20,34 @@
 
 package org.neo4j.laboratory.aggregation.aggregates;
 
-public class SumFunction implements AggregateFunction<Double>
+public class SumFunction implements DoubleAggregateFunction<Double>
 {
-    private double valueSoFar = 0;
+    private final double[] sum = new double[1];
+    private final double[] compensation = new double[1];
 
     public void accumulate( Object obj )
     {
-        double d = ( (Number)obj ).doubleValue();
-        valueSoFar += d;
+        accumulate( ( (Number)obj ).doubleValue() );
+    }
+
+    public void accumulate( double value )
+    {
+        CompensatedSum.add( sum, compensation, 0, value );
+    }
+
+    public void merge( AggregateFunction<Double> other )
+    {
+        SumFunction otherSum = (SumFunction)other;
+        CompensatedSum.merge( sum, compensation, 0, otherSum.sum[0], otherSum.compensation[0] );
+    }
+
+    public double doubleResult()
+    {
+        return CompensatedSum.value( sum, compensation, 0 );
     }
 
     public Double result()
     {
-        return valueSoFar;
+        return doubleResult();
     }
 }
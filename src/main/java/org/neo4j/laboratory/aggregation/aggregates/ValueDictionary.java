@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gives every distinct value an int code, in the order the values are first seen.
+ * Groupings and aggregates over properties with few distinct values, like the name
+ * of a department, keep the codes instead of the values, so the values are hashed
+ * once when they are encoded and after that only ints are compared and stored.
+ */
+public class ValueDictionary
+{
+    private final Map<Object, Integer> codes = new HashMap<Object, Integer>();
+    private Object[] values = new Object[16];
+
+    public int encode( Object value )
+    {
+        Integer code = codes.get( value );
+        if ( code != null )
+        {
+            return code;
+        }
+
+        int newCode = codes.size();
+        if ( newCode == values.length )
+        {
+            values = Arrays.copyOf( values, newCode * 2 );
+        }
+        values[newCode] = value;
+        codes.put( value, newCode );
+        return newCode;
+    }
+
+    public Object decode( int code )
+    {
+        return values[code];
+    }
+
+    public int size()
+    {
+        return codes.size();
+    }
+}
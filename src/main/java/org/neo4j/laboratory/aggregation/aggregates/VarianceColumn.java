@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+import java.util.Arrays;
+
+public class VarianceColumn implements DoubleAggregateColumn<Double>, RetractableColumn<Double>
+{
+    private final boolean sample;
+    private final boolean standardDeviation;
+    private long[] counts = new long[16];
+    private double[] means = new double[16];
+    private double[] squaredDistances = new double[16];
+
+    public VarianceColumn( boolean sample, boolean standardDeviation )
+    {
+        this.sample = sample;
+        this.standardDeviation = standardDeviation;
+    }
+
+    public void addGroup( int group )
+    {
+        if ( group == counts.length )
+        {
+            counts = Arrays.copyOf( counts, group * 2 );
+            means = Arrays.copyOf( means, group * 2 );
+            squaredDistances = Arrays.copyOf( squaredDistances, group * 2 );
+        }
+    }
+
+    public void accumulate( int group, Object value )
+    {
+        accumulate( group, ( (Number)value ).doubleValue() );
+    }
+
+    public void accumulate( int group, double value )
+    {
+        long count = ++counts[group];
+        double delta = value - means[group];
+        means[group] += delta / count;
+        squaredDistances[group] += delta * ( value - means[group] );
+    }
+
+    /**
+     * Runs Welford's update backwards.
+     */
+    public void retract( int group, Object value )
+    {
+        double removed = ( (Number)value ).doubleValue();
+        long count = --counts[group];
+        if ( count == 0 )
+        {
+            means[group] = 0;
+            squaredDistances[group] = 0;
+            return;
+        }
+
+        double oldMean = means[group];
+        means[group] = ( oldMean * ( count + 1 ) - removed ) / count;
+        squaredDistances[group] -= ( removed - oldMean ) * ( removed - means[group] );
+    }
+
+    public void merge( int group, AggregateColumn<Double> other, int otherGroup )
+    {
+        VarianceColumn otherVariance = (VarianceColumn)other;
+        long otherCount = otherVariance.counts[otherGroup];
+        if ( otherCount == 0 )
+        {
+            return;
+        }
+
+        long count = counts[group];
+        long total = count + otherCount;
+        double delta = otherVariance.means[otherGroup] - means[group];
+        squaredDistances[group] += otherVariance.squaredDistances[otherGroup] + delta * delta * count * otherCount / total;
+        means[group] += delta * otherCount / total;
+        counts[group] = total;
+    }
+
+    public Double result( int group )
+    {
+        if ( !hasResult( counts[group], sample ) )
+        {
+            return null;
+        }
+
+        return result( counts[group], squaredDistances[group], sample, standardDeviation );
+    }
+
+    /**
+     * The sample variance needs two values, the population variance one.
+     */
+    static boolean hasResult( long count, boolean sample )
+    {
+        return count > ( sample ? 1 : 0 );
+    }
+
+    static double result( long count, double squaredDistances, boolean sample, boolean standardDeviation )
+    {
+        double variance = squaredDistances / ( sample ? count - 1 : count );
+        return standardDeviation ? Math.sqrt( variance ) : variance;
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+public class VarianceFactory implements AggregateFunctionFactory<Double>, AggregateColumnFactory<Double>
+{
+    private final boolean sample;
+    private final boolean standardDeviation;
+
+    /**
+     * @param sample            Divide by n - 1 instead of n, for when the values are a
+     *                          sample of a larger population.
+     * @param standardDeviation Give the square root of the variance.
+     */
+    public VarianceFactory( boolean sample, boolean standardDeviation )
+    {
+        this.sample = sample;
+        this.standardDeviation = standardDeviation;
+    }
+
+    public AggregateFunction<Double> newGrouping()
+    {
+        return new VarianceFunction( sample, standardDeviation );
+    }
+
+    public AggregateColumn<Double> newColumn()
+    {
+        return new VarianceColumn( sample, standardDeviation );
+    }
+}
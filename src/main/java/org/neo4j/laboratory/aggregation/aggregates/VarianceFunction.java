@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.aggregates;
+
+/**
+ * Variance by Welford's method: the running mean and the sum of squared distances
+ * from it are updated for every value, which does not lose precision the way
+ * subtracting the square of the sum from the sum of squares does.
+ */
+public class VarianceFunction implements DoubleAggregateFunction<Double>
+{
+    private final boolean sample;
+    private final boolean standardDeviation;
+    private long count = 0;
+    private double mean = 0;
+    private double squaredDistances = 0;
+
+    public VarianceFunction( boolean sample, boolean standardDeviation )
+    {
+        this.sample = sample;
+        this.standardDeviation = standardDeviation;
+    }
+
+    public void accumulate( Object obj )
+    {
+        accumulate( ( (Number)obj ).doubleValue() );
+    }
+
+    public void accumulate( double value )
+    {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        squaredDistances += delta * ( value - mean );
+    }
+
+    public void merge( AggregateFunction<Double> other )
+    {
+        VarianceFunction otherVariance = (VarianceFunction)other;
+        if ( otherVariance.count == 0 )
+        {
+            return;
+        }
+
+        long total = count + otherVariance.count;
+        double delta = otherVariance.mean - mean;
+        squaredDistances += otherVariance.squaredDistances + delta * delta * count * otherVariance.count / total;
+        mean += delta * otherVariance.count / total;
+        count = total;
+    }
+
+    public double doubleResult()
+    {
+        return VarianceColumn.result( count, squaredDistances, sample, standardDeviation );
+    }
+
+    public Double result()
+    {
+        return VarianceColumn.hasResult( count, sample ) ? doubleResult() : null;
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.keymakers;
+
+import org.neo4j.laboratory.aggregation.PathAccess;
+import org.neo4j.laboratory.aggregation.aggregates.ValueDictionary;
+
+/**
+ * A key maker whose values can be kept as a primitive long: a node id, or the code
+ * of a property value in a dictionary. A grouping made only of these never builds
+ * Key objects while the paths are grouped, and only hashes and compares longs.
+ */
+public interface EncodedKeyMaker extends KeyMaker
+{
+    /**
+     * The code of a path that is to be skipped, see MissingPolicy.
+     */
+    long SKIPPED = -1;
+
+    /**
+     * @return The code of the key value of the path, or SKIPPED.
+     */
+    long getKeyCode( PathAccess path, ValueDictionary dictionary );
+
+    long encode( Object value, ValueDictionary dictionary );
+
+    Object decode( long code, ValueDictionary dictionary );
+}
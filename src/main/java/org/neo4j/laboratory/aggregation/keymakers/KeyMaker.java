@@ -20,9 +20,13 @@
 
 package org.neo4j.laboratory.aggregation.keymakers;
 
-import org.neo4j.graphdb.Path;
+import org.neo4j.laboratory.aggregation.PathAccess;
 
 public interface KeyMaker
 {
-    Object getKeyValue( Path path );
+    /**
+     * @return The value to group the path by, or MissingPolicy.SKIPPED if the path
+     *         is to be left out.
+     */
+    Object getKeyValue( PathAccess path );
 }
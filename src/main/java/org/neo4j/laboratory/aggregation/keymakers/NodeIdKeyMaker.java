@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.keymakers;
+
+import org.neo4j.laboratory.aggregation.PathAccess;
+import org.neo4j.laboratory.aggregation.aggregates.ValueDictionary;
+
+/**
+ * Groups by the id of a node rather than by the node itself. The id can be read as
+ * a primitive long, so groupings that only use node ids never box their keys while
+ * the paths are being grouped.
+ */
+public class NodeIdKeyMaker implements EncodedKeyMaker
+{
+    private int offset;
+
+    public NodeIdKeyMaker( int offset )
+    {
+        this.offset = offset;
+    }
+
+    public long getKeyId( PathAccess path )
+    {
+        return path.getNode( offset ).getId();
+    }
+
+    public Object getKeyValue( PathAccess path )
+    {
+        return getKeyId( path );
+    }
+
+    public long getKeyCode( PathAccess path, ValueDictionary dictionary )
+    {
+        return getKeyId( path );
+    }
+
+    public long encode( Object value, ValueDictionary dictionary )
+    {
+        return (Long)value;
+    }
+
+    public Object decode( long code, ValueDictionary dictionary )
+    {
+        return code;
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        return o instanceof NodeIdKeyMaker && ( (NodeIdKeyMaker)o ).offset == offset;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return offset;
+    }
+}
@@ -20,8 +20,7 @@
 
 package org.neo4j.laboratory.aggregation.keymakers;
 
-import org.neo4j.graphdb.Path;
-import org.neo4j.laboratory.aggregation.Grouping;
+import org.neo4j.laboratory.aggregation.PathAccess;
 
 public class NodeKeyMaker implements KeyMaker
 {
@@ -32,8 +31,20 @@ public class NodeKeyMaker implements KeyMaker
         this.offset = offset;
     }
 
-    public Object getKeyValue( Path path )
+    public Object getKeyValue( PathAccess path )
     {
-        return Grouping.getNodeByOffset( path, offset );
+        return path.getNode( offset );
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        return o instanceof NodeKeyMaker && ( (NodeKeyMaker)o ).offset == offset;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return offset;
     }
 }
@@ -21,23 +21,87 @@
 package org.neo4j.laboratory.aggregation.keymakers;
 
 import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.Path;
-import org.neo4j.laboratory.aggregation.Grouping;
+import org.neo4j.laboratory.aggregation.MissingPolicy;
+import org.neo4j.laboratory.aggregation.PathAccess;
+import org.neo4j.laboratory.aggregation.aggregates.ValueDictionary;
 
-public class NodePropertyKeyMaker implements KeyMaker
+public class NodePropertyKeyMaker implements EncodedKeyMaker, PruningKeyMaker
 {
     private int offset;
     private String property;
+    private MissingPolicy ifMissing;
 
     public NodePropertyKeyMaker( int offset, String property )
+    {
+        this( offset, property, MissingPolicy.fail() );
+    }
+
+    public NodePropertyKeyMaker( int offset, String property, MissingPolicy ifMissing )
     {
         this.offset = offset;
         this.property = property;
+        this.ifMissing = ifMissing;
+    }
+
+    public Object getKeyValue( PathAccess path )
+    {
+        Node node = path.findNode( offset );
+        if ( node == null )
+        {
+            return ifMissing.valueForMissing( "Offset points to outside the path: ", offset );
+        }
+        Object value = path.findProperty( node, property );
+        if ( value == null )
+        {
+            return ifMissing.valueForMissing( "Did not find property ", property );
+        }
+        return value;
+    }
+
+    /**
+     * Only a node counted from the start of the path stays the same as the path
+     * grows, so only then can a missing property rule the continuations out.
+     */
+    public boolean cannotMakeKeyFrom( PathAccess prefix )
+    {
+        if ( ifMissing.skipsPath() && offset > 0 && offset <= prefix.length() && !prefix.hasProperty( prefix.getNode( offset ), property ) )
+        {
+            ifMissing.pruned();
+            return true;
+        }
+        return false;
+    }
+
+    public long getKeyCode( PathAccess path, ValueDictionary dictionary )
+    {
+        Object value = getKeyValue( path );
+        return value == MissingPolicy.SKIPPED ? SKIPPED : dictionary.encode( value );
+    }
+
+    public long encode( Object value, ValueDictionary dictionary )
+    {
+        return dictionary.encode( value );
+    }
+
+    public Object decode( long code, ValueDictionary dictionary )
+    {
+        return dictionary.decode( (int)code );
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( !( o instanceof NodePropertyKeyMaker ) )
+        {
+            return false;
+        }
+        NodePropertyKeyMaker other = (NodePropertyKeyMaker)o;
+        return other.offset == offset && other.property.equals( property ) && other.ifMissing.equals( ifMissing );
     }
 
-    public Object getKeyValue( Path path )
+    @Override
+    public int hashCode()
     {
-        Node node = Grouping.getNodeByOffset( path, offset );
-        return node.getProperty( property );
+        return 31 * offset + property.hashCode();
     }
 }
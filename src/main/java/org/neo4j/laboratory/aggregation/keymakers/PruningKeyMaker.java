@@ -0,0 +1,38 @@
+/**
+ * Copyright (c) 2002-2010 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.neo4j.laboratory.aggregation.keymakers;
+
+import org.neo4j.laboratory.aggregation.PathAccess;
+
+/**
+ * A key maker that can tell from the start of a path that neither the path nor any
+ * path that continues it can be given a key, so a traversal that aggregates as it
+ * goes does not have to walk further down that branch.
+ */
+public interface PruningKeyMaker extends KeyMaker
+{
+    /**
+     * @param prefix The path walked so far.
+     * @return True if no path starting with the prefix can be given a key, in which
+     *         case the prefix has been counted by the MissingPolicy that drops it.
+     */
+    boolean cannotMakeKeyFrom( PathAccess prefix );
+}
@@ -20,39 +20,101 @@
 
 package org.neo4j.laboratory.aggregation.keymakers;
 
-import org.neo4j.graphdb.NotFoundException;
-import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.laboratory.aggregation.MissingPolicy;
+import org.neo4j.laboratory.aggregation.PathAccess;
+import org.neo4j.laboratory.aggregation.aggregates.ValueDictionary;
 
-public class RelationPropertyKeyMaker implements KeyMaker
+public class RelationPropertyKeyMaker implements EncodedKeyMaker, PruningKeyMaker
 {
     private RelationshipType relationshipType;
     private String property;
+    private MissingPolicy ifMissing;
 
     public RelationPropertyKeyMaker( RelationshipType relationshipType,
                                      String property )
+    {
+        this( relationshipType, property, MissingPolicy.fail() );
+    }
+
+    public RelationPropertyKeyMaker( RelationshipType relationshipType,
+                                     String property, MissingPolicy ifMissing )
     {
         this.relationshipType = relationshipType;
         this.property = property;
+        this.ifMissing = ifMissing;
+    }
+
+    public Object getKeyValue( PathAccess path )
+    {
+        Relationship relationship = path.findRelationship( relationshipType );
+        if ( relationship == null )
+        {
+            return ifMissing.valueForMissing( "Did not find relationship of type ", relationshipType );
+        }
+        Object value = relationship.getProperty( property, null );
+        if ( value == null )
+        {
+            return ifMissing.valueForMissing( "Did not find property ", property );
+        }
+        return value;
     }
 
-    static Relationship findRelationshipTypeInPath(
-            RelationshipType relationshipType, Path path )
+    /**
+     * Once a relationship of the type is in the path, it stays the first one as the
+     * path grows.
+     */
+    public boolean cannotMakeKeyFrom( PathAccess prefix )
     {
-        for ( Relationship relationship : path.relationships() )
+        Relationship relationship = prefix.findRelationship( relationshipType );
+        if ( ifMissing.skipsPath() && relationship != null && !relationship.hasProperty( property ) )
         {
-            if ( relationship.isType( relationshipType ) )
-            {
-                return relationship;
-            }
+            ifMissing.pruned();
+            return true;
         }
+        return false;
+    }
 
-        throw new NotFoundException( "Did not find relationship of type " + relationshipType );
+    public long getKeyCode( PathAccess path, ValueDictionary dictionary )
+    {
+        Object value = getKeyValue( path );
+        return value == MissingPolicy.SKIPPED ? SKIPPED : dictionary.encode( value );
+    }
+
+    public long encode( Object value, ValueDictionary dictionary )
+    {
+        return dictionary.encode( value );
+    }
+
+    public Object decode( long code, ValueDictionary dictionary )
+    {
+        return dictionary.decode( (int)code );
+    }
+
+    /**
+     * Relationship types are equal by name, whether they are enums or dynamic types.
+     */
+    static boolean sameType( RelationshipType first, RelationshipType second )
+    {
+        return first.name().equals( second.name() );
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( !( o instanceof RelationPropertyKeyMaker ) )
+        {
+            return false;
+        }
+        RelationPropertyKeyMaker other = (RelationPropertyKeyMaker)o;
+        return sameType( other.relationshipType, relationshipType ) && other.property.equals( property ) &&
+                other.ifMissing.equals( ifMissing );
     }
 
-    public Object getKeyValue( Path path )
+    @Override
+    public int hashCode()
     {
-        return findRelationshipTypeInPath( relationshipType, path ).getProperty( property );
+        return 31 * relationshipType.name().hashCode() + property.hashCode();
     }
 }
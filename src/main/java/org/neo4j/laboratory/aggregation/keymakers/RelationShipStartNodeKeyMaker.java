@@ -20,20 +20,52 @@
 
 package org.neo4j.laboratory.aggregation.keymakers;
 
-import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.laboratory.aggregation.MissingPolicy;
+import org.neo4j.laboratory.aggregation.PathAccess;
 
 public class RelationShipStartNodeKeyMaker implements KeyMaker
 {
     private RelationshipType relationshipType;
+    private MissingPolicy ifMissing;
 
     public RelationShipStartNodeKeyMaker( RelationshipType relationshipType )
+    {
+        this( relationshipType, MissingPolicy.fail() );
+    }
+
+    public RelationShipStartNodeKeyMaker( RelationshipType relationshipType, MissingPolicy ifMissing )
     {
         this.relationshipType = relationshipType;
+        this.ifMissing = ifMissing;
+    }
+
+    public Object getKeyValue( PathAccess path )
+    {
+        Relationship relationship = path.findRelationship( relationshipType );
+        if ( relationship == null )
+        {
+            return ifMissing.valueForMissing( "Did not find relationship of type ", relationshipType );
+        }
+        return relationship.getStartNode();
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( !( o instanceof RelationShipStartNodeKeyMaker ) )
+        {
+            return false;
+        }
+        RelationShipStartNodeKeyMaker other = (RelationShipStartNodeKeyMaker)o;
+        return RelationPropertyKeyMaker.sameType( other.relationshipType, relationshipType ) &&
+                other.ifMissing.equals( ifMissing );
     }
 
-    public Object getKeyValue( Path path )
+    @Override
+    public int hashCode()
     {
-        return RelationPropertyKeyMaker.findRelationshipTypeInPath( relationshipType, path ).getStartNode();
+        return relationshipType.name().hashCode();
     }
 }
@@ -28,18 +28,34 @@ import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.traversal.Evaluation;
+import org.neo4j.graphdb.traversal.Evaluator;
+import org.neo4j.graphdb.traversal.TraversalDescription;
 import org.neo4j.graphdb.traversal.Traverser;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
 import org.neo4j.kernel.Traversal;
 import org.neo4j.kernel.Uniqueness;
+import org.neo4j.laboratory.aggregation.aggregates.AggregateFunction;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.Matchers.closeTo;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
@@ -108,6 +124,56 @@ public class AggregatorTest
         assertResultContains( result, "department", "D", equalTo( (double)66666 ) );
     }
 
+    @Test
+    public void groupByNodeLongSumAggregation()
+    {
+        // This is the eqvivalent of this SQL query:
+        // SELECT departmentId, SUM(salary)
+        // FROM employees
+        // GROUP BY departmentId
+        //
+        // with the sum kept as an exact long
+
+        Transaction transaction = db.beginTx();
+        for ( Node node : db.getAllNodes() )
+        {
+            if ( node.hasProperty( "salary" ) )
+            {
+                node.setProperty( "salary", ( (Number)node.getProperty( "salary" ) ).longValue() );
+            }
+        }
+        transaction.success();
+        transaction.finish();
+
+        Grouping grouping = Grouping.description().
+                groupByNode( 1, "department" ).
+                groupFrom( getTraversalDescription() );
+
+        Map<Key, Long> result = grouping.aggregateNodeProperty( -1, "salary", Aggregate.LongSum() );
+
+        assertResultContains( result, "department", "C", equalTo( 280000L ) );
+        assertResultContains( result, "department", "D", equalTo( 66666L ) );
+    }
+
+    @Test
+    public void longSumRejectsFractionalNumbers()
+    {
+        // The salaries are floats, which LongSum would have to truncate
+        Grouping grouping = Grouping.description().
+                groupByNode( 1, "department" ).
+                groupFrom( getTraversalDescription() );
+
+        try
+        {
+            grouping.aggregateNodeProperty( -1, "salary", Aggregate.LongSum() );
+            fail( "LongSum should not sum floats" );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            assertThat( e.getMessage().contains( "Float" ), equalTo( true ) );
+        }
+    }
+
     @Test
     public void groupByNodeAggregateNode()
     {
@@ -126,6 +192,44 @@ public class AggregatorTest
         assertResultContains( result, "department", "C", equalTo( 3 ) );
     }
 
+    @Test
+    public void groupByNodeIdAggregateNode()
+    {
+        // This is the eqvivalent of this SQL query:
+        // SELECT departmentId, countryId, SUM(salary)
+        // FROM employees
+        // GROUP BY departmentId, countryId
+        //
+        // Only the node ids are kept in the keys.
+
+        Map<Key, Double> result = Grouping.description().
+                groupByNodeId( 1, "department" ).
+                groupByNodeId( 0, "country" ).
+                aggregateNodeProperty( -1, "salary", Aggregate.Sum() ).
+                aggregateFrom( getTraversalDescription() );
+
+        assertThat( result.size(), equalTo( 3 ) );
+        for ( Key key : result.keySet() )
+        {
+            assertThat( key.getKey( "department" ) instanceof Long, equalTo( true ) );
+
+            String department = (String)key.getNode( "department", db ).getProperty( "department" );
+            String country = (String)key.getNode( "country", db ).getProperty( "country" );
+            if ( department.equals( "D" ) )
+            {
+                assertThat( country, equalTo( "Finland" ) );
+                assertThat( result.get( key ), equalTo( (double)66666 ) );
+            }
+        }
+
+        Map<Key, Integer> buffered = Grouping.description().
+                groupByNodeId( 1, "department" ).
+                groupFrom( getTraversalDescription() ).
+                aggregateNode( -1, Aggregate.Count() );
+
+        assertThat( buffered.size(), equalTo( 2 ) );
+    }
+
     @Test
     public void groupByTwoNodesAggregateNode()
     {
@@ -161,6 +265,22 @@ public class AggregatorTest
         assertThat( result.size(), equalTo( 2 ) );
     }
 
+    @Test
+    public void negativeAndPositiveOffsetsFindTheSameNode()
+    {
+        // In the company -> department -> employee -> country paths, the department
+        // is one step from the start and two steps from the end.
+
+        Grouping grouping = Grouping.description().
+                groupByNodeProperty( -2, "department" ).
+                groupFrom( getTraversalDescription() );
+
+        Map<Key, Integer> result = grouping.aggregateNode( 2, Aggregate.Count() );
+
+        assertThat( result.get( createKey( "C" ) ), equalTo( 3 ) );
+        assertThat( result.get( createKey( "D" ) ), equalTo( 2 ) );
+    }
+
     @Test
     public void groupByRelationProperty()
     {
@@ -327,6 +447,969 @@ public class AggregatorTest
         assertThat( dSize, equalTo( 2 ) );
     }
 
+    @Test
+    public void streamingAggregateOnNodeProperty()
+    {
+        // Same as groupByNodeAggregateOnNodeProperty, but the aggregate is declared
+        // up front and calculated while traversing, without keeping the paths around.
+
+        Map<Key, Double> result = Grouping.description().
+                groupByNode( 0, "country" ).
+                aggregateNodeProperty( -1, "salary", Aggregate.Sum() ).
+                aggregateFrom( getTraversalDescription() );
+
+        assertThat( result.size(), equalTo( 2 ) );
+        assertResultContains( result, "country", "Finland", equalTo( (double)186666 ) );
+        assertResultContains( result, "country", "Sweden", equalTo( (double)160000 ) );
+    }
+
+    @Test
+    public void streamingAggregateNode()
+    {
+        Map<Key, Integer> result = Grouping.description().
+                groupByNode( 1, "department" ).
+                aggregateNode( -1, Aggregate.Count() ).
+                aggregateFrom( getTraversalDescription() );
+
+        assertResultContains( result, "department", "D", equalTo( 2 ) );
+        assertResultContains( result, "department", "C", equalTo( 3 ) );
+    }
+
+    @Test
+    public void severalAggregatesInOnePass()
+    {
+        // This is the eqvivalent of this SQL query:
+        // SELECT departmentId, SUM(salary), AVG(salary), MIN(salary), MAX(salary), COUNT(*)
+        // FROM employees
+        // GROUP BY departmentId
+
+        AggregateSpec<Double> sum = AggregateSpec.nodeProperty( -1, "salary", Aggregate.Sum() );
+        AggregateSpec<Double> avg = AggregateSpec.nodeProperty( -1, "salary", Aggregate.Avg() );
+        AggregateSpec<Double> min = AggregateSpec.nodeProperty( -1, "salary", Aggregate.Min() );
+        AggregateSpec<Double> max = AggregateSpec.nodeProperty( -1, "salary", Aggregate.Max() );
+        AggregateSpec<Integer> count = AggregateSpec.node( -1, Aggregate.Count() );
+
+        Grouping grouping = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                groupFrom( getTraversalDescription() );
+
+        Map<Key, AggregateRow> result = grouping.aggregate( sum, avg, min, max, count );
+
+        AggregateRow d = result.get( createKey( "D" ) );
+        assertThat( d.get( sum ), equalTo( (double)66666 ) );
+        assertThat( d.get( avg ), equalTo( (double)33333 ) );
+        assertThat( d.get( min ), equalTo( (double)12345 ) );
+        assertThat( d.get( max ), equalTo( (double)54321 ) );
+        assertThat( d.get( count ), equalTo( 2 ) );
+
+        Map<Key, AggregateRow> streamed = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                aggregate( sum, count ).
+                aggregateFrom( getTraversalDescription() );
+
+        assertThat( streamed.get( createKey( "C" ) ).get( sum ), equalTo( (double)280000 ) );
+        assertThat( streamed.get( createKey( "C" ) ).get( count ), equalTo( 3 ) );
+    }
+
+    @Test
+    public void parallelAggregationMatchesSequential()
+    {
+        AggregateSpec<?>[] specs = new AggregateSpec<?>[]{
+                AggregateSpec.nodeProperty( -1, "salary", Aggregate.Sum() ),
+                AggregateSpec.nodeProperty( -1, "salary", Aggregate.Avg() ),
+                AggregateSpec.nodeProperty( -1, "salary", Aggregate.Min() ),
+                AggregateSpec.nodeProperty( -1, "salary", Aggregate.Max() ),
+                AggregateSpec.nodeProperty( -1, "employee", Aggregate.Join( ", " ) ),
+                AggregateSpec.node( -1, Aggregate.Count() ),
+                AggregateSpec.node( -1, Aggregate.Collect() )};
+
+        StreamingAggregation<AggregateRow> aggregation = Grouping.description().
+                groupByNode( 0, "country" ).
+                groupByNodeProperty( 1, "department" ).
+                aggregate( specs );
+
+        Map<Key, AggregateRow> sequential = aggregation.aggregateFrom( getTraversalDescription() );
+
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        try
+        {
+            for ( int batchSize = 1; batchSize <= 3; batchSize++ )
+            {
+                Map<Key, AggregateRow> parallel =
+                        aggregation.aggregateFrom( getTraversalDescription(), executor, batchSize );
+
+                assertThat( parallel.keySet(), equalTo( sequential.keySet() ) );
+                for ( Key key : sequential.keySet() )
+                {
+                    for ( AggregateSpec<?> spec : specs )
+                    {
+                        Object expected = sequential.get( key ).get( spec );
+                        Object actual = parallel.get( key ).get( spec );
+                        assertThat( actual, equalTo( expected ) );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void encodedKeysAreMergedAcrossDictionaries()
+    {
+        // Every batch of a parallel aggregation encodes the property values with a
+        // dictionary of its own, so the codes must be translated when batches merge.
+        AggregateSpec<String> names = AggregateSpec.nodeProperty( -1, "employee", Aggregate.Join( "," ) );
+        StreamingAggregation<AggregateRow> aggregation = Grouping.description().
+                groupByRelationProperty( RelTypes.WORKS_FOR, "position" ).
+                groupByNodeProperty( 1, "department" ).
+                groupByNodeId( 0, "country" ).
+                aggregate( names );
+
+        Map<Key, AggregateRow> sequential = aggregation.aggregateFrom( getTraversalDescription() );
+        assertThat( sequential.size(), equalTo( 5 ) );
+
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            Map<Key, AggregateRow> parallel = aggregation.aggregateFrom( getTraversalDescription(), executor, 1 );
+            assertThat( parallel.keySet(), equalTo( sequential.keySet() ) );
+            for ( Key key : sequential.keySet() )
+            {
+                assertThat( parallel.get( key ).get( names ), equalTo( sequential.get( key ).get( names ) ) );
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void pipelinedAggregationMatchesSequential()
+    {
+        // A ring of two paths keeps the traversal waiting for the consumers.
+        AggregateSpec<?>[] specs = new AggregateSpec<?>[]{
+                AggregateSpec.nodeProperty( -1, "salary", Aggregate.Sum() ),
+                AggregateSpec.nodeProperty( -1, "salary", Aggregate.Avg() ),
+                AggregateSpec.nodeProperty( -1, "salary", Aggregate.Min() ),
+                AggregateSpec.nodeProperty( -1, "salary", Aggregate.Max() ),
+                AggregateSpec.node( -1, Aggregate.Count() )};
+
+        StreamingAggregation<AggregateRow> aggregation = Grouping.description().
+                groupByNode( 0, "country" ).
+                groupByNodeProperty( 1, "department" ).
+                aggregate( specs );
+
+        Map<Key, AggregateRow> sequential = aggregation.aggregateFrom( getTraversalDescription() );
+
+        ExecutorService executor = Executors.newFixedThreadPool( 3 );
+        try
+        {
+            for ( int consumers = 1; consumers <= 3; consumers++ )
+            {
+                Map<Key, AggregateRow> pipelined =
+                        aggregation.aggregatePipelined( getTraversalDescription(), executor, consumers, 2 );
+
+                assertThat( pipelined.keySet(), equalTo( sequential.keySet() ) );
+                for ( Key key : sequential.keySet() )
+                {
+                    for ( AggregateSpec<?> spec : specs )
+                    {
+                        assertThat( pipelined.get( key ).get( spec ), equalTo( sequential.get( key ).get( spec ) ) );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void topGroupsByAggregate()
+    {
+        // This is the eqvivalent of this SQL query:
+        // SELECT departmentId, countryId, COUNT(*)
+        // FROM employees
+        // GROUP BY departmentId, countryId
+        // ORDER BY COUNT(*) DESC, departmentId, countryId
+        // LIMIT 2
+
+        Grouping grouping = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                groupByNodeProperty( 0, "country" ).
+                groupFrom( getTraversalDescription() );
+
+        AggregateSpec<Integer> count = AggregateSpec.node( -1, Aggregate.Count() );
+        Map<Key, Integer> top = grouping.top( 2, SortOrder.DESCENDING, count );
+
+        List<Key> keys = new ArrayList<Key>( top.keySet() );
+        assertThat( keys.size(), equalTo( 2 ) );
+        assertThat( keys.get( 0 ).getKey( "department" ), equalTo( (Object)"C" ) );
+        assertThat( keys.get( 0 ).getKey( "country" ), equalTo( (Object)"Sweden" ) );
+        assertThat( keys.get( 1 ).getKey( "department" ), equalTo( (Object)"D" ) );
+        assertThat( top.get( keys.get( 1 ) ), equalTo( 2 ) );
+
+        Map<Key, Double> lowest = grouping.top( 10, SortOrder.ASCENDING,
+                AggregateSpec.nodeProperty( -1, "salary", Aggregate.Sum() ) );
+        List<Double> sums = new ArrayList<Double>( lowest.values() );
+        assertThat( sums.size(), equalTo( 3 ) );
+        assertThat( sums.get( 0 ), equalTo( (double)66666 ) );
+        assertThat( sums.get( 1 ), equalTo( (double)120000 ) );
+        assertThat( sums.get( 2 ), equalTo( (double)160000 ) );
+    }
+
+    @Test
+    public void rollupAndCubeInOnePass()
+    {
+        // SELECT department, country, COUNT(*)
+        // FROM employees
+        // GROUP BY ROLLUP(department, country)
+
+        Grouping grouping = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                groupByNodeProperty( 0, "country" ).
+                rollup().
+                groupFrom( getTraversalDescription() );
+
+        Map<Key, Integer> result = grouping.aggregateNode( -1, Aggregate.Count() );
+        assertThat( result.size(), equalTo( 6 ) );
+        assertThat( result.get( createKey( "C" ) ), equalTo( 3 ) );
+        assertThat( result.get( createKey( "D" ) ), equalTo( 2 ) );
+        assertThat( result.get( new Key() ), equalTo( 5 ) );
+        for ( Key key : result.keySet() )
+        {
+            if ( key.getKeyNames().size() == 1 )
+            {
+                assertThat( key.getRolledUpNames().contains( "country" ), equalTo( true ) );
+            }
+        }
+
+        AggregateSpec<Integer> count = AggregateSpec.node( -1, Aggregate.Count() );
+        Map<Key, AggregateRow> cube = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                groupByNodeProperty( 0, "country" ).
+                cube().
+                aggregate( count ).
+                aggregateFrom( getTraversalDescription() );
+
+        Key finland = new Key();
+        finland.addKey( "country", "Finland" );
+        assertThat( cube.size(), equalTo( 8 ) );
+        assertThat( cube.get( finland ).get( count ), equalTo( 3 ) );
+        assertThat( cube.get( new Key() ).get( count ), equalTo( 5 ) );
+    }
+
+    @Test
+    public void propertiesOfSharedNodesAreReadOnce()
+    {
+        Grouping grouping = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                groupByNodeProperty( 0, "country" ).
+                groupFrom( getTraversalDescription() );
+
+        // Five paths through two departments and two countries
+        PropertyMemo memo = grouping.getPropertyMemo();
+        assertThat( memo.getMisses(), equalTo( 4L ) );
+        assertThat( memo.getHits(), equalTo( 6L ) );
+        assertThat( memo.getHitRate(), closeTo( 0.6, 0.0001 ) );
+
+        Map<Key, String> departments = grouping.aggregateNodeProperty( 1, "department", Aggregate.Join( "," ) );
+        assertThat( departments.size(), equalTo( 3 ) );
+        assertThat( grouping.getPropertyMemo().getMisses(), equalTo( 2L ) );
+        assertThat( grouping.getPropertyMemo().getHits(), equalTo( 3L ) );
+    }
+
+    @Test
+    public void runsAreProfiled()
+    {
+        GroupingDescription description = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                groupByNodeProperty( 0, "country" );
+        assertThat( description.explain().contains( "group by department: NodePropertyKeyMaker" ), equalTo( true ) );
+
+        GroupingMetrics metrics = GroupingMetrics.instance();
+        metrics.reset();
+        metrics.setEnabled( true );
+        try
+        {
+            Grouping grouping = description.groupFrom( getTraversalDescription() );
+            GroupingProfile profile = grouping.getProfile();
+            assertThat( profile.isTimed(), equalTo( true ) );
+            assertThat( profile.getPathsConsumed(), equalTo( 5L ) );
+            assertThat( profile.getPathsSkipped(), equalTo( 0L ) );
+            assertThat( profile.getGroups(), equalTo( 3L ) );
+            assertThat( profile.getPropertyReads(), equalTo( 10L ) );
+            assertThat( profile.summary().startsWith( "PROFILE group" ), equalTo( true ) );
+
+            grouping.aggregateNodeProperty( -1, "salary", Aggregate.Sum() );
+            assertThat( grouping.getProfile().getOperation(), equalTo( "aggregate" ) );
+            assertThat( grouping.getProfile().getPathsConsumed(), equalTo( 5L ) );
+
+            assertThat( metrics.getRuns(), equalTo( 2L ) );
+            assertThat( metrics.getPathsConsumed(), equalTo( 10L ) );
+            assertThat( metrics.getPeakEstimatedBytes() > 0, equalTo( true ) );
+        }
+        finally
+        {
+            metrics.setEnabled( false );
+        }
+
+        Grouping untimed = description.groupFrom( getTraversalDescription() );
+        assertThat( untimed.getProfile().isTimed(), equalTo( false ) );
+        assertThat( untimed.getProfile().getPathsConsumed(), equalTo( 5L ) );
+        assertThat( metrics.getRuns(), equalTo( 2L ) );
+    }
+
+    @Test
+    public void groupByNodeCountDistinct()
+    {
+        // This is the eqvivalent of this SQL query:
+        // SELECT departmentId, COUNT(DISTINCT countryId), COUNT(DISTINCT salary)
+        // FROM employees
+        // GROUP BY departmentId
+
+        Grouping grouping = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                groupFrom( getTraversalDescription() );
+
+        Map<Key, Long> countries = grouping.aggregateNode( 0, Aggregate.CountDistinctNodes() );
+        assertThat( countries.get( createKey( "C" ) ), equalTo( 2L ) );
+        assertThat( countries.get( createKey( "D" ) ), equalTo( 1L ) );
+
+        Map<Key, Long> approxCountries = grouping.aggregateNode( 0, Aggregate.ApproxCountDistinctNodes( 12 ) );
+        assertThat( approxCountries.get( createKey( "C" ) ), equalTo( 2L ) );
+
+        Map<Key, Long> salaries = grouping.aggregateNodeProperty( -1, "salary", Aggregate.CountDistinct() );
+        assertThat( salaries.get( createKey( "C" ) ), equalTo( 3L ) );
+
+        Map<Key, Long> approxSalaries = grouping.aggregateNodeProperty( -1, "salary", Aggregate.ApproxCountDistinct( 12 ) );
+        assertThat( approxSalaries.get( createKey( "C" ) ), equalTo( 3L ) );
+        assertThat( approxSalaries.get( createKey( "D" ) ), equalTo( 2L ) );
+    }
+
+    @Test
+    public void countDistinctComparesArraysByContent()
+    {
+        Transaction transaction = db.beginTx();
+        findNode( "employee", "Anders" ).setProperty( "skills", new int[]{1, 2} );
+        findNode( "employee", "Ceasar" ).setProperty( "skills", new long[]{1, 2} );
+        findNode( "employee", "Bertil" ).setProperty( "skills", new int[]{3} );
+        findNode( "employee", "Emil" ).setProperty( "skills", new String[]{"java"} );
+        findNode( "employee", "David" ).setProperty( "skills", new String[]{"java"} );
+        transaction.success();
+        transaction.finish();
+
+        Grouping grouping = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                groupFrom( getTraversalDescription() );
+
+        Map<Key, Long> exact = grouping.aggregateNodeProperty( -1, "skills", Aggregate.CountDistinct() );
+        assertThat( exact.get( createKey( "C" ) ), equalTo( 2L ) );
+        assertThat( exact.get( createKey( "D" ) ), equalTo( 1L ) );
+
+        Map<Key, Long> approx = grouping.aggregateNodeProperty( -1, "skills", Aggregate.ApproxCountDistinct( 12 ) );
+        assertThat( approx, equalTo( exact ) );
+    }
+
+    @Test
+    public void approxCountDistinctMergesPartialSketches()
+    {
+        AggregateFunction<Long> first = Aggregate.ApproxCountDistinct( 12 ).newGrouping();
+        AggregateFunction<Long> second = Aggregate.ApproxCountDistinct( 12 ).newGrouping();
+        for ( int i = 0; i < 60000; i++ )
+        {
+            first.accumulate( "employee " + i );
+        }
+        for ( int i = 40000; i < 100000; i++ )
+        {
+            second.accumulate( "employee " + i );
+        }
+        first.merge( second );
+
+        assertThat( (double)first.result(), closeTo( 100000, 5000 ) );
+    }
+
+    @Test
+    public void groupByNodeMedianAggregation()
+    {
+        Grouping grouping = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                groupFrom( getTraversalDescription() );
+
+        Map<Key, Double> median = grouping.aggregateNodeProperty( -1, "salary", Aggregate.Median() );
+        Map<Key, Double> exactMedian = grouping.aggregateNodeProperty( -1, "salary", Aggregate.ExactPercentile( 0.5 ) );
+
+        assertThat( median.get( createKey( "C" ) ), equalTo( (double)120000 ) );
+        assertThat( median.get( createKey( "D" ) ), equalTo( (double)12345 ) );
+        assertThat( median, equalTo( exactMedian ) );
+    }
+
+    @Test
+    public void percentileSketchStaysWithinErrorBound()
+    {
+        AggregateFunction<Double> first = Aggregate.Percentile( 0.95, 0.01 ).newGrouping();
+        AggregateFunction<Double> second = Aggregate.Percentile( 0.95, 0.01 ).newGrouping();
+        AggregateFunction<Double> exact = Aggregate.ExactPercentile( 0.95 ).newGrouping();
+        for ( int i = 0; i < 100000; i++ )
+        {
+            // Every value once, in a scrambled order
+            double value = ( i * 7919L ) % 100000;
+            ( i % 2 == 0 ? first : second ).accumulate( value );
+            exact.accumulate( value );
+        }
+        first.merge( second );
+
+        assertThat( exact.result(), equalTo( (double)94999 ) );
+        assertThat( first.result(), closeTo( exact.result(), 1000 ) );
+    }
+
+    @Test
+    public void groupByNodeVarianceAggregation()
+    {
+        // This is the eqvivalent of this SQL query:
+        // SELECT departmentId, VAR_SAMP(salary), STDDEV_POP(salary)
+        // FROM employees
+        // GROUP BY departmentId
+
+        AggregateSpec<Double> variance = AggregateSpec.nodeProperty( -1, "salary", Aggregate.Variance() );
+        AggregateSpec<Double> stdDev = AggregateSpec.nodeProperty( -1, "salary", Aggregate.PopulationStdDev() );
+
+        Map<Key, AggregateRow> result = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                groupFrom( getTraversalDescription() ).
+                aggregate( variance, stdDev );
+
+        AggregateRow departmentD = result.get( createKey( "D" ) );
+        assertThat( departmentD.get( variance ), closeTo( 880992288, 1e-3 ) );
+        assertThat( departmentD.get( stdDev ), closeTo( 20988, 1e-9 ) );
+
+        Map<Key, Double> streamed = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                aggregateNodeProperty( -1, "salary", Aggregate.PopulationVariance() ).
+                aggregateFrom( getTraversalDescription() );
+        assertThat( streamed.get( createKey( "D" ) ), closeTo( 440496144, 1e-3 ) );
+    }
+
+    @Test
+    public void compensatedSumKeepsSmallValues()
+    {
+        AggregateFunction<Double> sum = Aggregate.Sum().newGrouping();
+        sum.accumulate( 1e16 );
+        sum.accumulate( 1.0 );
+        sum.accumulate( -1e16 );
+
+        assertThat( sum.result(), equalTo( 1.0 ) );
+    }
+
+    @Test
+    public void materializedAggregationFollowsTransactions()
+    {
+        AggregateSpec<Double> sum = AggregateSpec.nodeProperty( -1, "salary", Aggregate.Sum() );
+        AggregateSpec<Integer> count = AggregateSpec.node( -1, Aggregate.Count() );
+        AggregateSpec<Double> max = AggregateSpec.nodeProperty( -1, "salary", Aggregate.Max() );
+
+        MaterializedAggregation aggregation = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                materialize( db, getEmployeesDescription(), company, sum, count, max );
+        try
+        {
+            assertThat( aggregation.results( sum ).get( createKey( "C" ) ), equalTo( (double)280000 ) );
+
+            // A changed salary
+            Transaction transaction = db.beginTx();
+            findNode( "employee", "Ceasar" ).setProperty( "salary", 50000f );
+            transaction.success();
+            transaction.finish();
+
+            Map<Key, AggregateRow> result = aggregation.results();
+            assertThat( result.get( createKey( "C" ) ).get( sum ), equalTo( (double)180000 ) );
+            assertThat( result.get( createKey( "C" ) ).get( max ), equalTo( (double)120000 ) );
+
+            // A new employee
+            transaction = db.beginTx();
+            addEmployee( "Fredrik", 100000, findNode( "country", "Finland" ),
+                    findNode( "department", "D" ), "dev" );
+            transaction.success();
+            transaction.finish();
+
+            result = aggregation.results();
+            assertThat( result.get( createKey( "D" ) ).get( sum ), equalTo( (double)166666 ) );
+            assertThat( result.get( createKey( "D" ) ).get( count ), equalTo( 3 ) );
+            assertThat( result.get( createKey( "D" ) ).get( max ), equalTo( (double)100000 ) );
+
+            // An employee leaving
+            transaction = db.beginTx();
+            findNode( "employee", "Bertil" ).getSingleRelationship( RelTypes.WORKS_FOR, Direction.OUTGOING ).delete();
+            transaction.success();
+            transaction.finish();
+
+            result = aggregation.results();
+            assertThat( result.get( createKey( "C" ) ).get( sum ), equalTo( (double)60000 ) );
+            assertThat( result.get( createKey( "C" ) ).get( count ), equalTo( 2 ) );
+            assertThat( result.get( createKey( "C" ) ).get( max ), equalTo( (double)50000 ) );
+
+            Map<Key, AggregateRow> recalculated = Grouping.description().
+                    groupByNodeProperty( 1, "department" ).
+                    groupFrom( getTraversalDescription() ).
+                    aggregate( sum, count, max );
+            for ( Key key : recalculated.keySet() )
+            {
+                assertThat( result.get( key ).get( sum ), equalTo( recalculated.get( key ).get( sum ) ) );
+                assertThat( result.get( key ).get( max ), equalTo( recalculated.get( key ).get( max ) ) );
+            }
+        }
+        finally
+        {
+            aggregation.close();
+        }
+    }
+
+    @Test
+    public void materializedAggregationSeesChangesMadeWhileItIsBuilt() throws InterruptedException
+    {
+        AggregateSpec<Double> sum = AggregateSpec.nodeProperty( -1, "salary", Aggregate.Sum() );
+
+        // Registered before the view, so it knows when the change has been committed
+        final CountDownLatch committed = new CountDownLatch( 1 );
+        TransactionEventHandler<Object> commits = new TransactionEventHandler<Object>()
+        {
+            public Object beforeCommit( TransactionData data )
+            {
+                return null;
+            }
+
+            public void afterCommit( TransactionData data, Object state )
+            {
+                committed.countDown();
+            }
+
+            public void afterRollback( TransactionData data, Object state )
+            {
+            }
+        };
+        db.registerTransactionEventHandler( commits );
+
+        // Raises the salary of the first employee found, once the traversal has gone past
+        // it, and hires a colleague in the same department
+        final Thread[] writer = new Thread[1];
+        TraversalDescription traversal = getEmployeesDescription().evaluator( new Evaluator()
+        {
+            private Node firstEmployee;
+
+            public Evaluation evaluate( Path path )
+            {
+                Relationship last = path.lastRelationship();
+                if ( last == null || !last.isType( RelTypes.LIVES_IN ) )
+                {
+                    return Evaluation.INCLUDE_AND_CONTINUE;
+                }
+                if ( firstEmployee == null )
+                {
+                    firstEmployee = last.getStartNode();
+                }
+                else if ( writer[0] == null )
+                {
+                    final Node employee = firstEmployee;
+                    writer[0] = new Thread()
+                    {
+                        public void run()
+                        {
+                            Transaction transaction = db.beginTx();
+                            employee.setProperty( "salary", 1000000f );
+                            Node department = employee.getSingleRelationship( RelTypes.WORKS_FOR,
+                                    Direction.OUTGOING ).getEndNode();
+                            Node country = employee.getSingleRelationship( RelTypes.LIVES_IN,
+                                    Direction.OUTGOING ).getEndNode();
+                            addEmployee( "Fredrik", 100000, country, department, "dev" );
+                            transaction.success();
+                            transaction.finish();
+                        }
+                    };
+                    writer[0].start();
+                    try
+                    {
+                        committed.await( 10, TimeUnit.SECONDS );
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        throw new RuntimeException( e );
+                    }
+                }
+                return Evaluation.INCLUDE_AND_CONTINUE;
+            }
+        } );
+
+        MaterializedAggregation aggregation = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                materialize( db, traversal, company, sum );
+        try
+        {
+            writer[0].join();
+            assertThat( committed.getCount(), equalTo( 0L ) );
+            Map<Key, Double> recalculated = Grouping.description().
+                    groupByNodeProperty( 1, "department" ).
+                    aggregateNodeProperty( -1, "salary", Aggregate.Sum() ).
+                    aggregateFrom( getTraversalDescription() );
+            assertThat( aggregation.results( sum ), equalTo( recalculated ) );
+        }
+        finally
+        {
+            aggregation.close();
+            db.unregisterTransactionEventHandler( commits );
+        }
+    }
+
+    @Test
+    public void materializedPathsComeBackWhenTheirPropertiesDo()
+    {
+        AggregateSpec<Double> sum = AggregateSpec.nodeProperty( -1, "salary", Aggregate.Sum() );
+        AggregateSpec<Double> max = AggregateSpec.nodeProperty( -1, "salary", Aggregate.Max() );
+
+        MaterializedAggregation aggregation = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                materialize( db, getEmployeesDescription(), company, sum, max );
+        try
+        {
+            Transaction transaction = db.beginTx();
+            findNode( "employee", "Ceasar" ).removeProperty( "salary" );
+            transaction.success();
+            transaction.finish();
+
+            assertThat( aggregation.results( sum ).get( createKey( "C" ) ), equalTo( (double)130000 ) );
+
+            transaction = db.beginTx();
+            findNode( "employee", "Ceasar" ).setProperty( "salary", 90000 );
+            transaction.success();
+            transaction.finish();
+
+            Map<Key, AggregateRow> result = aggregation.results();
+            Map<Key, AggregateRow> recalculated = Grouping.description().
+                    groupByNodeProperty( 1, "department" ).
+                    aggregate( sum, max ).
+                    aggregateFrom( getTraversalDescription() );
+            assertThat( result.keySet(), equalTo( recalculated.keySet() ) );
+            for ( Key key : recalculated.keySet() )
+            {
+                assertThat( result.get( key ).get( sum ), equalTo( recalculated.get( key ).get( sum ) ) );
+                assertThat( result.get( key ).get( max ), equalTo( recalculated.get( key ).get( max ) ) );
+            }
+        }
+        finally
+        {
+            aggregation.close();
+        }
+    }
+
+    @Test
+    public void cachedAggregationIsInvalidatedByWrites()
+    {
+        AggregateSpec<Double> sum = AggregateSpec.nodeProperty( -1, "salary", Aggregate.Sum() );
+        TraversalDescription employees = getEmployeesDescription();
+        GroupingCache cache = new GroupingCache( db, 1, 0, TimeUnit.SECONDS );
+        try
+        {
+            Map<Key, AggregateRow> first = cache.aggregate(
+                    Grouping.description().groupByNodeProperty( 1, "department" ), employees, company, sum );
+            Map<Key, AggregateRow> second = cache.aggregate(
+                    Grouping.description().groupByNodeProperty( 1, "department" ), employees, company, sum );
+            assertThat( second == first, equalTo( true ) );
+            assertThat( cache.getHits(), equalTo( 1L ) );
+            assertThat( cache.getMisses(), equalTo( 1L ) );
+
+            // Only room for one result
+            cache.aggregate( Grouping.description().groupByNode( 0, "country" ), employees, company, sum );
+            assertThat( cache.getEvictions(), equalTo( 1L ) );
+
+            Transaction transaction = db.beginTx();
+            findNode( "employee", "Emil" ).setProperty( "salary", 60000f );
+            transaction.success();
+            transaction.finish();
+            assertThat( cache.getInvalidations(), equalTo( 1L ) );
+            assertThat( cache.size(), equalTo( 0 ) );
+
+            Map<Key, AggregateRow> third = cache.aggregate(
+                    Grouping.description().groupByNodeProperty( 1, "department" ), employees, company, sum );
+            assertThat( third.get( createKey( "D" ) ).get( sum ), equalTo( (double)72345 ) );
+            assertThat( cache.getMisses(), equalTo( 3L ) );
+        }
+        finally
+        {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void externalAggregationSpillsGroupsThatDoNotFit()
+    {
+        AggregateSpec<?>[] specs = new AggregateSpec<?>[]{
+                AggregateSpec.nodeProperty( -1, "salary", Aggregate.Sum() ),
+                AggregateSpec.nodeProperty( -1, "employee", Aggregate.Join( ", " ) ),
+                AggregateSpec.node( -1, Aggregate.Count() ),
+                AggregateSpec.node( -1, Aggregate.Collect() )};
+
+        StreamingAggregation<AggregateRow> byEmployee = Grouping.description().
+                groupByNodeProperty( -1, "employee" ).
+                aggregate( specs );
+        StreamingAggregation<AggregateRow> byCountryAndDepartment = Grouping.description().
+                groupByNode( 0, "country" ).
+                groupByNodeProperty( 1, "department" ).
+                aggregate( specs );
+
+        // Five employees with room for two, three groups with room for one
+        assertSameAsInMemory( byEmployee, 2, specs );
+        assertSameAsInMemory( byCountryAndDepartment, 1, specs );
+    }
+
+    private void assertSameAsInMemory( StreamingAggregation<AggregateRow> aggregation, int maxGroupsInMemory,
+                                       AggregateSpec<?>[] specs )
+    {
+        Map<Key, AggregateRow> inMemory = aggregation.aggregateFrom( getTraversalDescription() );
+
+        Map<Key, AggregateRow> external = new HashMap<Key, AggregateRow>();
+        ExternalAggregation<AggregateRow> results = aggregation.aggregateFrom(
+                getTraversalDescription(), db, maxGroupsInMemory, null );
+        try
+        {
+            while ( results.hasNext() )
+            {
+                Map.Entry<Key, AggregateRow> entry = results.next();
+                external.put( entry.getKey(), entry.getValue() );
+            }
+        }
+        finally
+        {
+            results.close();
+        }
+
+        assertThat( external.keySet(), equalTo( inMemory.keySet() ) );
+        for ( Key key : inMemory.keySet() )
+        {
+            for ( AggregateSpec<?> spec : specs )
+            {
+                Object expected = inMemory.get( key ).get( spec );
+                Object actual = external.get( key ).get( spec );
+                assertThat( actual, equalTo( expected ) );
+            }
+        }
+    }
+
+    @Test
+    public void aggregateFromPropertySnapshot() throws IOException
+    {
+        File file = File.createTempFile( "snapshot", ".properties" );
+        PropertySnapshot snapshot = PropertySnapshot.create( db, file, "salary", "employee" );
+        try
+        {
+            Grouping grouping = Grouping.description().
+                    groupByNodeProperty( 1, "department" ).
+                    groupFrom( getTraversalDescription() );
+
+            Map<Key, Double> fromNodes = grouping.aggregateNodeProperty( -1, "salary", Aggregate.Sum() );
+            Map<Key, String> namesFromNodes = grouping.aggregateNodeProperty( -1, "employee", Aggregate.Join( "," ) );
+            grouping.readingFrom( snapshot );
+            assertThat( grouping.aggregateNodeProperty( -1, "salary", Aggregate.Sum() ), equalTo( fromNodes ) );
+            assertThat( grouping.aggregateNodeProperty( -1, "employee", Aggregate.Join( "," ) ),
+                    equalTo( namesFromNodes ) );
+            assertThat( snapshot.isStale(), equalTo( false ) );
+
+            Transaction transaction = db.beginTx();
+            findNode( "employee", "David" ).setProperty( "salary", 20000f );
+            transaction.success();
+            transaction.finish();
+
+            assertThat( snapshot.isStale(), equalTo( true ) );
+            assertThat( grouping.aggregateNodeProperty( -1, "salary", Aggregate.Sum() ), equalTo( fromNodes ) );
+        }
+        finally
+        {
+            snapshot.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void relationshipsAreFoundInPathsOfMixedShapes()
+    {
+        // Every path from the company, of every length, is read through the same
+        // PathAccess, so positions learnt from one shape must not leak into another.
+        Traverser traverser = Traversal.description()
+                .relationships( RelTypes.DEPARTMENT_OF, Direction.INCOMING )
+                .relationships( RelTypes.WORKS_FOR, Direction.INCOMING )
+                .relationships( RelTypes.LIVES_IN, Direction.OUTGOING )
+                .traverse( company );
+
+        PathAccess access = new PathAccess();
+        for ( Path path : traverser )
+        {
+            access.reset( path );
+            for ( RelTypes type : RelTypes.values() )
+            {
+                Relationship expected = null;
+                for ( Relationship relationship : path.relationships() )
+                {
+                    if ( relationship.isType( type ) )
+                    {
+                        expected = relationship;
+                        break;
+                    }
+                }
+
+                try
+                {
+                    assertThat( access.getRelationship( type ), equalTo( expected ) );
+                }
+                catch ( NotFoundException e )
+                {
+                    assertThat( expected, equalTo( null ) );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void aggregateInsideTraversal()
+    {
+        StreamingAggregation<Double> salaries = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                aggregateNodeProperty( -1, "salary", Aggregate.Sum() );
+
+        Map<Key, Double> streamed = salaries.aggregateFrom( getTraversalDescription() );
+        AggregatingEvaluator<Double> evaluator =
+                salaries.evaluator( Traversal.returnWhereLastRelationshipTypeIs( RelTypes.LIVES_IN ) );
+        assertThat( evaluator.aggregate( getEmployeesDescription(), company ), equalTo( streamed ) );
+        assertThat( evaluator.getAggregatedPaths(), equalTo( 5L ) );
+
+        Transaction transaction = db.beginTx();
+        findNode( "department", "D" ).removeProperty( "department" );
+        transaction.success();
+        transaction.finish();
+
+        // Without a policy the missing name fails the traversal
+        evaluator = salaries.evaluator( Traversal.returnWhereLastRelationshipTypeIs( RelTypes.LIVES_IN ) );
+        try
+        {
+            evaluator.aggregate( getEmployeesDescription(), company );
+            fail( "The missing department name should fail the aggregation" );
+        }
+        catch ( NotFoundException e )
+        {
+            // expected
+        }
+
+        // With the skip path policy the branch through the department without a name is not walked at all
+        MissingPolicy skip = MissingPolicy.skipPath();
+        evaluator = Grouping.description().
+                groupByNodeProperty( 1, "department", skip ).
+                aggregateNodeProperty( -1, "salary", Aggregate.Sum() ).
+                evaluator( Traversal.returnWhereLastRelationshipTypeIs( RelTypes.LIVES_IN ) );
+        Map<Key, Double> result = evaluator.aggregate( getEmployeesDescription(), company );
+        assertThat( result.size(), equalTo( 1 ) );
+        assertThat( result.get( createKey( "C" ) ), equalTo( (double)280000 ) );
+        assertThat( evaluator.getPrunedPaths(), equalTo( 1L ) );
+        assertThat( evaluator.getSkippedPaths(), equalTo( 0L ) );
+        assertThat( skip.getAppliedCount(), equalTo( 1L ) );
+    }
+
+    @Test
+    public void missingValuesFollowTheirPolicies() throws IOException
+    {
+        Transaction transaction = db.beginTx();
+        findNode( "employee", "Emil" ).removeProperty( "salary" );
+        findNode( "employee", "David" ).getSingleRelationship( RelTypes.WORKS_FOR, Direction.OUTGOING )
+                .removeProperty( "position" );
+        transaction.success();
+        transaction.finish();
+
+        MissingPolicy skip = MissingPolicy.skipPath();
+        Map<Key, Integer> counts = Grouping.description().
+                groupByRelationProperty( RelTypes.WORKS_FOR, "position", skip ).
+                groupFrom( getTraversalDescription() ).
+                aggregateNode( -1, Aggregate.Count() );
+        Key dev = new Key();
+        dev.addKey( "position", "dev" );
+        assertThat( counts.size(), equalTo( 2 ) );
+        assertThat( counts.get( dev ), equalTo( 3 ) );
+        assertThat( skip.getAppliedCount(), equalTo( 1L ) );
+
+        // Inside the traversal, the path is pruned instead, and still counted
+        MissingPolicy prune = MissingPolicy.skipPath();
+        AggregatingEvaluator<Integer> evaluator = Grouping.description().
+                groupByRelationProperty( RelTypes.WORKS_FOR, "position", prune ).
+                aggregateNode( -1, Aggregate.Count() ).
+                evaluator( Traversal.returnWhereLastRelationshipTypeIs( RelTypes.LIVES_IN ) );
+        assertThat( evaluator.aggregate( getEmployeesDescription(), company ).get( dev ), equalTo( 3 ) );
+        assertThat( evaluator.getPrunedPaths(), equalTo( 1L ) );
+        assertThat( prune.getAppliedCount(), equalTo( 1L ) );
+
+        counts = Grouping.description().
+                groupByRelationProperty( RelTypes.WORKS_FOR, "position", MissingPolicy.useNull() ).
+                groupFrom( getTraversalDescription() ).
+                aggregateNode( -1, Aggregate.Count() );
+        Key noPosition = new Key();
+        noPosition.addKey( "position", null );
+        assertThat( counts.get( noPosition ), equalTo( 1 ) );
+
+        AggregateSpec<Double> average =
+                AggregateSpec.nodeProperty( -1, "salary", Aggregate.Avg(), MissingPolicy.useNull() );
+        AggregateSpec<Double> averageOfAll =
+                AggregateSpec.nodeProperty( -1, "salary", Aggregate.Avg(), MissingPolicy.useDefault( 0f ) );
+        Map<Key, AggregateRow> rows = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                aggregate( average, averageOfAll ).
+                aggregateFrom( getTraversalDescription() );
+        assertThat( rows.get( createKey( "D" ) ).get( average ), equalTo( (double)12345 ) );
+        assertThat( rows.get( createKey( "D" ) ).get( averageOfAll ), equalTo( 12345 / 2.0 ) );
+
+        // A node past the end of every path
+        AggregateSpec<Integer> beyond = AggregateSpec.node( 5, Aggregate.Count(), MissingPolicy.useNull() );
+        rows = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                aggregate( beyond ).
+                aggregateFrom( getTraversalDescription() );
+        assertThat( rows.get( createKey( "D" ) ).get( beyond ), equalTo( 0 ) );
+        rows = Grouping.description().
+                groupByNodeProperty( 1, "department" ).
+                aggregate( AggregateSpec.node( 5, Aggregate.Count(), MissingPolicy.skipPath() ) ).
+                aggregateFrom( getTraversalDescription() );
+        assertThat( rows.size(), equalTo( 0 ) );
+
+        // The averages again, with the salaries read from a snapshot without Emil's
+        File file = File.createTempFile( "snapshot", ".properties" );
+        PropertySnapshot snapshot = PropertySnapshot.create( db, file, "salary" );
+        try
+        {
+            rows = Grouping.description().
+                    groupByNodeProperty( 1, "department" ).
+                    groupFrom( getTraversalDescription() ).
+                    readingFrom( snapshot ).
+                    aggregate( average, averageOfAll );
+            assertThat( rows.get( createKey( "D" ) ).get( average ), equalTo( (double)12345 ) );
+            assertThat( rows.get( createKey( "D" ) ).get( averageOfAll ), equalTo( 12345 / 2.0 ) );
+        }
+        finally
+        {
+            snapshot.close();
+            file.delete();
+        }
+    }
+
+    private Node findNode( String key, String value )
+    {
+        for ( Node node : db.getAllNodes() )
+        {
+            if ( value.equals( node.getProperty( key, null ) ) )
+            {
+                return node;
+            }
+        }
+        throw new IllegalArgumentException( "No node with " + key + " " + value );
+    }
+
     private Key createKey( String value )
     {
         Key key = new Key();
@@ -355,14 +1438,18 @@ public class AggregatorTest
     }
 
     private Traverser getTraversalDescription()
+    {
+        return getEmployeesDescription().traverse( company );
+    }
+
+    private TraversalDescription getEmployeesDescription()
     {
         return Traversal.description()
                 .relationships( RelTypes.DEPARTMENT_OF, Direction.INCOMING )
                 .relationships( RelTypes.WORKS_FOR, Direction.INCOMING )
                 .relationships( RelTypes.LIVES_IN, Direction.OUTGOING )
                 .uniqueness( Uniqueness.RELATIONSHIP_GLOBAL )
-                .filter( Traversal.returnWhereLastRelationshipTypeIs( RelTypes.LIVES_IN ) )
-                .traverse( company );
+                .filter( Traversal.returnWhereLastRelationshipTypeIs( RelTypes.LIVES_IN ) );
     }
 
     private void addEmployee( String name, float salary, Node country,